@@ -1,9 +1,12 @@
 package de.silef.service.file;
 
-import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
 import de.silef.service.file.index.*;
 import de.silef.service.file.node.FileMode;
 import de.silef.service.file.node.IndexNode;
+import de.silef.service.file.node.IndexJournal;
+import de.silef.service.file.node.IndexNodeCreator;
 import de.silef.service.file.node.IndexNodeReader;
 import de.silef.service.file.node.IndexNodeWriter;
 import de.silef.service.file.util.ByteUtil;
@@ -31,36 +34,48 @@ public class FileIndexCli {
 
     private static final String DEFAULT_INDEX_DIR = ".cache/fileindex";
     private static final int CHANGE_OUTPUT_LIMIT = 256;
+    private static final long WATCH_DELAY = 1000;
+    private static final long JOURNAL_PERCENT = 10;
 
     private CommandLine cmd;
 
+    private boolean nodeTableIndex;
+
     public FileIndexCli(CommandLine cmd) {
         this.cmd = cmd;
     }
 
-    private void run() throws IOException, java.text.ParseException {
+    int run() throws IOException, java.text.ParseException {
         Path base = getBase();
         Path indexFile = getIndexFile(base);
 
-        Predicate<Path> pathIndexFilter = p -> true;
+        Predicate<Path> pathIndexFilter = getPathIndexFilter(indexFile);
         Predicate<IndexNode> hashNodeFilter = getHashNodeFilter();
 
+        FileIndex index;
         if (!Files.exists(indexFile)) {
-            createIndex(base, indexFile, pathIndexFilter, hashNodeFilter);
-            return;
-        }
+            index = createIndex(base, indexFile, pathIndexFilter, hashNodeFilter);
+        } else {
+            index = readIndex(base, indexFile, pathIndexFilter, hashNodeFilter);
+            IndexChange changes = getIndexChanges(index);
 
-        FileIndex index = readIndex(base, indexFile, pathIndexFilter, hashNodeFilter);
-        IndexChange changes = getIndexChanges(index);
+            if (cmd.hasOption('n')) {
+                return 0;
+            }
 
-        if (cmd.hasOption('n')) {
-            System.exit(0);
+            boolean updated = updateIndex(indexFile, index, changes);
+            if (updated && !cmd.hasOption("watch")) {
+                return 1;
+            }
         }
 
-        updateIndex(indexFile, index, changes);
+        if (cmd.hasOption("watch")) {
+            watchIndex(indexFile, index);
+        }
+        return 0;
     }
 
-    private void createIndex(Path base, Path indexFile, Predicate<Path> pathIndexFilter, Predicate<IndexNode> hashNodeFilter) throws IOException {
+    private FileIndex createIndex(Path base, Path indexFile, Predicate<Path> pathIndexFilter, Predicate<IndexNode> hashNodeFilter) throws IOException {
         FileIndex index = initializeIndex(base, pathIndexFilter, hashNodeFilter);
         AtomicBoolean done = new AtomicBoolean();
         addShutdownHook(done, () -> {
@@ -71,6 +86,7 @@ public class FileIndexCli {
         writeIndex(index, indexFile);
         done.set(true);
         System.out.println("File index successfully created");
+        return index;
     }
 
     private void initializeTreeHash(FileIndex index) throws IOException {
@@ -81,12 +97,49 @@ public class FileIndexCli {
 
     private FileIndex readIndex(Path base, Path indexFile, Predicate<Path> pathIndexFilter, Predicate<IndexNode> hashNodeFilter) throws IOException {
         LOG.debug("Reading existing file index from {}", indexFile);
-        IndexNode root = new IndexNodeReader().read(base, indexFile);
-        FileIndex index = new FileIndex(base, root, pathIndexFilter, hashNodeFilter);
+        FileIndex index;
+        Path nodeTableFile = getNodeTableFile(indexFile);
+        if (cmd.hasOption("node-table") && isCurrentNodeTable(indexFile, nodeTableFile)) {
+            LOG.debug("Mapping node table {}", nodeTableFile);
+            index = FileIndex.openNodeTable(base, nodeTableFile, pathIndexFilter, hashNodeFilter);
+            nodeTableIndex = true;
+        } else {
+            IndexNodeReader reader = new IndexNodeReader();
+            reader.setBlockThreads(getBlockThreads());
+            index = new FileIndex(base, reader.read(base, indexFile), pathIndexFilter, hashNodeFilter);
+        }
+        int records = IndexJournal.forIndex(indexFile).replay(index.getRoot());
+        if (records > 0) {
+            LOG.debug("Replayed {} journal records", records);
+        }
+        index.setScanThreads(getScanThreads());
+        index.setHashThreads(getHashThreads());
+        index.setHashOrder(getHashOrder());
+        index.setIncrementalScan(cmd.hasOption("incremental"));
+        index.setFingerprintMinSize(getFingerprintMinSize());
+        index.setResumableMinSize(getSizeOption("resume-size", "resume size"));
+        index.setChunkMinSize(getSizeOption("chunk-min-size", "chunk min size"));
+        index.setTreeHashMinSize(getSizeOption("tree-hash-size", "tree hash size"));
+        if (cmd.hasOption("hash") && getHashAlgorithm() != index.getHashAlgorithm()) {
+            LOG.warn("Existing index uses hash algorithm {}. Ignore hash option", index.getHashAlgorithm().getName());
+        }
         LOG.debug("Read index with {} files with {}", index.getTotalFileCount(), ByteUtil.toHumanSize(index.getTotalFileSize()));
         return index;
     }
 
+    private Path getNodeTableFile(Path indexFile) {
+        return indexFile.resolveSibling(indexFile.getFileName() + ".nodes");
+    }
+
+    /**
+     * @return true if the node table is written after the index file. The journal of the index
+     * applies to the node table then, too
+     */
+    private boolean isCurrentNodeTable(Path indexFile, Path nodeTableFile) throws IOException {
+        return Files.exists(nodeTableFile) &&
+                Files.getLastModifiedTime(nodeTableFile).compareTo(Files.getLastModifiedTime(indexFile)) >= 0;
+    }
+
     private void addShutdownHook(AtomicBoolean done, Callable<Void> hook) {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
@@ -105,11 +158,48 @@ public class FileIndexCli {
 
     private FileIndex initializeIndex(Path base, Predicate<Path> pathIndexFilter, Predicate<IndexNode> hashNodeFilter) throws IOException {
         LOG.debug("Initializing file index from {}", base.toAbsolutePath());
-        FileIndex index = new FileIndex(base, pathIndexFilter, hashNodeFilter);
+        FileIndex index = new FileIndex(base, pathIndexFilter, hashNodeFilter, getScanThreads());
+        index.setHashThreads(getHashThreads());
+        index.setHashOrder(getHashOrder());
+        index.setHashAlgorithm(getHashAlgorithm());
+        index.setFingerprintMinSize(getFingerprintMinSize());
+        index.setResumableMinSize(getSizeOption("resume-size", "resume size"));
+        index.setChunkMinSize(getSizeOption("chunk-min-size", "chunk min size"));
+        index.setTreeHashMinSize(getSizeOption("tree-hash-size", "tree hash size"));
         LOG.info("Initialed index with {} files with {}", index.getTotalFileCount(), ByteUtil.toHumanSize(index.getTotalFileSize()));
         return index;
     }
 
+    /**
+     * Append the changes to the journal of the index. The index is rewritten if the journal
+     * exceeds the journal size percentage of the index.
+     *
+     * An index of a node table is always rewritten via the journal, since the table does not
+     * keep digest states and chunks
+     */
+    private void writeChanges(FileIndex index, Path indexFile, IndexChange changes) throws IOException {
+        long journalPercent = getNumberOption("journal-size", "journal size", JOURNAL_PERCENT);
+        if ((journalPercent <= 0 && !nodeTableIndex) || !Files.exists(indexFile)) {
+            writeIndex(index, indexFile);
+            return;
+        }
+
+        IndexJournal journal = IndexJournal.forIndex(indexFile);
+        List<Path> updatedPaths = new ArrayList<>();
+        changes.getCreated().forEach(n -> updatedPaths.add(n.getRelativePath()));
+        changes.getModified().forEach(n -> updatedPaths.add(n.getRelativePath()));
+        List<Path> removedPaths = changes.getRemoved().stream().map(IndexNode::getRelativePath).collect(Collectors.toList());
+        journal.append(index.getRoot(), updatedPaths, removedPaths);
+
+        long journalSize = journal.size();
+        if (journalSize * 100 > Files.size(indexFile) * Math.max(journalPercent, 0)) {
+            LOG.debug("Compacting journal of {}", ByteUtil.toHumanSize(journalSize));
+            writeIndex(index, indexFile);
+        } else {
+            LOG.info("Appended changes to journal {}. The index root hash is {}", journal.getFile(), index.getRoot().getHash());
+        }
+    }
+
     private Predicate<IndexNode> getHashNodeFilter() throws java.text.ParseException {
         if (!cmd.hasOption('M')) {
             return node -> true;
@@ -138,31 +228,58 @@ public class FileIndexCli {
 
         Path tmp = null;
         try {
+            FileIndex fullIndex = getFullIndex(index, indexFile);
             tmp = indexFile.getParent().resolve(indexFile.getFileName() + ".tmp");
-            new IndexNodeWriter().write(index.getRoot(), tmp);
+            IndexNodeWriter writer = new IndexNodeWriter();
+            writer.setBlockThreads(getBlockThreads());
+            writer.write(fullIndex.getRoot(), tmp);
+            // The table is written first so that it is not older than the moved index
+            if (cmd.hasOption("node-table")) {
+                fullIndex.writeNodeTable(getNodeTableFile(indexFile));
+            }
             Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // The journal is replayed idempotently if the deletion is interrupted
+            IndexJournal.forIndex(indexFile).delete();
         } catch (IOException e) {
             if (tmp != null) {
-                Files.delete(tmp);
+                Files.deleteIfExists(tmp);
             }
+            throw e;
         }
         LOG.info("Written file index data to {}. The index root hash is {}", indexFile, index.getRoot().getHash());
     }
 
+    /**
+     * Return the index to write. The nodes of a node table lack digest states, chunks and the
+     * scan time, so the index file is read and the journal of the changes is replayed instead
+     */
+    private FileIndex getFullIndex(FileIndex index, Path indexFile) throws IOException {
+        if (!nodeTableIndex) {
+            return index;
+        }
+        LOG.debug("Reading file index {} to replace the nodes of the node table", indexFile);
+        IndexNodeReader reader = new IndexNodeReader();
+        reader.setBlockThreads(getBlockThreads());
+        IndexNode root = reader.read(index.getBase(), indexFile);
+        IndexJournal.forIndex(indexFile).replay(root);
+        return new FileIndex(index.getBase(), root);
+    }
+
     private IndexChange getIndexChanges(FileIndex index) throws IOException {
         LOG.debug("Updating index from {}", index.getBase());
         IndexChange changes = index.getChanges();
         LOG.debug("Updated index");
 
         // Add all empty hashes to the modified change to resume hash calculation
+        boolean fullHash = cmd.hasOption("full-hash");
         Set<IndexNode> emptyHashes = index.getRoot().stream()
                 .filter(n -> n.getMode() == FileMode.FILE)
-                .filter(n -> n.getHash().equals(FileHash.ZERO))
+                .filter(n -> n.getHash().isZero() || (fullHash && (n.getHashKind() == HashKind.FINGERPRINT || n.getHashKind() == HashKind.RESUMED)))
                 .collect(Collectors.toSet());
         LOG.info("Add {} files to resume integrity check", emptyHashes.size());
         emptyHashes.addAll(changes.getModified());
 
-        IndexChange resumeChange = new IndexChange(changes.getBase(), new HashSet<>(changes.getCreated()), emptyHashes, changes.getRemoved());
+        IndexChange resumeChange = new IndexChange(changes.getBase(), new HashSet<>(changes.getCreated()), emptyHashes, changes.getRemoved(), changes.getScanRoot());
 
         if (!cmd.hasOption("q")) {
             printChange(resumeChange);
@@ -170,10 +287,10 @@ public class FileIndexCli {
         return resumeChange;
     }
 
-    private void updateIndex(Path indexFile, FileIndex index, IndexChange changes) throws IOException {
+    private boolean updateIndex(Path indexFile, FileIndex index, IndexChange changes) throws IOException {
         if (!changes.hasChanges()) {
             LOG.info("No changes detected");
-            return;
+            return false;
         }
         AtomicBoolean done = new AtomicBoolean();
         addShutdownHook(done, () -> {
@@ -184,14 +301,43 @@ public class FileIndexCli {
         index.updateChanges(changes, false);
         LOG.debug("Updated file index");
 
-        writeIndex(index, indexFile);
+        writeChanges(index, indexFile, changes);
         done.set(true);
-        System.exit(1);
+        return true;
+    }
+
+    private void watchIndex(Path indexFile, FileIndex index) throws IOException {
+        long delay = getNumberOption("watch-delay", "watch delay", WATCH_DELAY);
+        try (IndexWatcher watcher = new IndexWatcher(index, delay)) {
+            System.out.println("Watching " + index.getBase() + " for changes");
+            watcher.watch(changes -> {
+                if (!cmd.hasOption("q")) {
+                    printChange(changes);
+                }
+                writeChanges(index, indexFile, changes);
+            });
+        } catch (InterruptedException e) {
+            LOG.info("Watching interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Predicate<Path> getPathIndexFilter(Path indexFile) {
+        Path indexPath = indexFile.toAbsolutePath().normalize();
+        String indexName = indexPath.getFileName().toString();
+        return path -> {
+            Path name = path.getFileName();
+            if (name == null || !name.toString().startsWith(indexName)) {
+                return true;
+            }
+            Path absolutePath = path.toAbsolutePath().normalize();
+            return !indexPath.getParent().equals(absolutePath.getParent());
+        };
     }
 
     private Path getIndexFile(Path base) throws IOException {
         Path indexFile;
-        if (cmd.hasOption("d")) {
+        if (cmd.hasOption("i")) {
             indexFile = Paths.get(cmd.getOptionValue("i"));
         } else {
             String indexName = base.toRealPath().getFileName() + ".index";
@@ -234,15 +380,82 @@ public class FileIndexCli {
     }
 
     private long getChangeOutputLimit() {
-        if (!cmd.hasOption("output-limit")) {
-            return CHANGE_OUTPUT_LIMIT;
+        return getNumberOption("output-limit", "change output limit", CHANGE_OUTPUT_LIMIT);
+    }
+
+    private int getScanThreads() {
+        int defaultThreads = IndexNodeCreator.getDefaultParallelism();
+        int threads = (int) getNumberOption("scan-threads", "scan thread count", defaultThreads);
+        return threads > 0 ? threads : defaultThreads;
+    }
+
+    private int getBlockThreads() {
+        int defaultThreads = IndexNodeCreator.getDefaultParallelism();
+        int threads = (int) getNumberOption("block-threads", "block thread count", defaultThreads);
+        return threads > 0 ? threads : defaultThreads;
+    }
+
+    private int getHashThreads() {
+        int threads = (int) getNumberOption("hash-threads", "hash thread count", 1);
+        return threads > 0 ? threads : 1;
+    }
+
+    private long getFingerprintMinSize() {
+        if (cmd.hasOption("full-hash")) {
+            return 0;
+        }
+        return getSizeOption("fingerprint-size", "fingerprint size");
+    }
+
+    private long getSizeOption(String option, String description) {
+        if (!cmd.hasOption(option)) {
+            return 0;
+        }
+        try {
+            return ByteUtil.toByte(cmd.getOptionValue(option));
+        } catch (java.text.ParseException e) {
+            System.err.println("Invalid " + description + ". Option is disabled");
+            LOG.warn("Invalid " + description, e);
+            return 0;
+        }
+    }
+
+    private IndexUpdater.HashOrder getHashOrder() {
+        String order = cmd.getOptionValue("hash-order", "path");
+        if (order.equalsIgnoreCase("inode")) {
+            return IndexUpdater.HashOrder.INODE;
+        } else if (order.equalsIgnoreCase("device")) {
+            return IndexUpdater.HashOrder.DEVICE_INODE;
+        } else if (!order.equalsIgnoreCase("path")) {
+            System.err.println("Invalid hash order. Use default path");
+            LOG.warn("Invalid hash order {}", order);
+        }
+        return IndexUpdater.HashOrder.PATH;
+    }
+
+    private HashAlgorithm getHashAlgorithm() {
+        if (!cmd.hasOption("hash")) {
+            return HashAlgorithm.SHA1;
+        }
+        HashAlgorithm algorithm = HashAlgorithm.forName(cmd.getOptionValue("hash"));
+        if (algorithm == null) {
+            System.err.println("Invalid hash algorithm. Use default " + HashAlgorithm.SHA1.getName());
+            LOG.warn("Invalid hash algorithm {}", cmd.getOptionValue("hash"));
+            return HashAlgorithm.SHA1;
+        }
+        return algorithm;
+    }
+
+    private long getNumberOption(String option, String description, long defaultValue) {
+        if (!cmd.hasOption(option)) {
+            return defaultValue;
         }
         try {
-            return Long.parseLong(cmd.getOptionValue("output-limit"));
+            return Long.parseLong(cmd.getOptionValue(option));
         } catch (NumberFormatException e) {
-            System.err.println("Invalid change output limit. Use default " + CHANGE_OUTPUT_LIMIT);
-            LOG.warn("Invalid change output limit", e);
-            return CHANGE_OUTPUT_LIMIT;
+            System.err.println("Invalid " + description + ". Use default " + defaultValue);
+            LOG.warn("Invalid " + description, e);
+            return defaultValue;
         }
     }
 
@@ -260,18 +473,89 @@ public class FileIndexCli {
         System.exit(0);
     }
 
-    private static Options createOptions() {
+    static Options createOptions() {
         Options options = new Options();
 
         options.addOption("h", false, "Print this help");
         options.addOption("i", true, "Index file to store. Default is ~/" + DEFAULT_INDEX_DIR + "/<dirname>.index");
         options.addOption("q", false, "Quiet mode");
         options.addOption("n", false, "Print changes only. Requires an existing file index");
+        options.addOption(Option.builder()
+                .longOpt("node-table")
+                .desc("Write a memory mapped node table next to the index file and read the nodes from it")
+                .build());
         options.addOption(Option.builder()
                 .longOpt("output-limit")
                 .hasArg(true)
                 .desc("Limit change output printing. Default is " + CHANGE_OUTPUT_LIMIT)
                 .build());
+        options.addOption(Option.builder()
+                .longOpt("block-threads")
+                .hasArg(true)
+                .desc("Count of threads to compress and read the blocks of the index file. Default is the count of processors")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("chunk-min-size")
+                .hasArg(true)
+                .desc("Minimum file size to hash files by content defined chunks")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("fingerprint-size")
+                .hasArg(true)
+                .desc("Hash only the size and content samples of files of this size and above")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("full-hash")
+                .desc("Replace fingerprints and resumed hashes of existing files by full content hashes")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("hash")
+                .hasArg(true)
+                .desc("Hash algorithm of a new index: sha1 or xxh64. Default is sha1")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("hash-order")
+                .hasArg(true)
+                .desc("Order of content hashing: path, inode or device. Use inode on rotational disks. Default is path")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("hash-threads")
+                .hasArg(true)
+                .desc("Count of threads to calculate content hashes. Default is 1")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("incremental")
+                .desc("Skip listing of directories with unchanged modification time")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("journal-size")
+                .hasArg(true)
+                .desc("Rewrite the index when its change journal exceeds this percentage of the index size. Use 0 to disable the journal. Default is " + JOURNAL_PERCENT)
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("resume-size")
+                .hasArg(true)
+                .desc("Store the digest state of files of this size and above to hash only appended content")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("scan-threads")
+                .hasArg(true)
+                .desc("Count of concurrent directory scans. Default is the count of processors")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("tree-hash-size")
+                .hasArg(true)
+                .desc("Hash blocks of files of this size and above in parallel as hash tree")
+                .build());
+        options.addOption(Option.builder("w")
+                .longOpt("watch")
+                .desc("Keep running and update the index on file changes")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("watch-delay")
+                .hasArg(true)
+                .desc("Delay in milliseconds to collect file changes in watch mode. Default is " + WATCH_DELAY)
+                .build());
         options.addOption(Option.builder("M")
                 .longOpt("verify-max-size")
                 .hasArg(true)
@@ -290,7 +574,10 @@ public class FileIndexCli {
                 printHelp(options);
             }
 
-            new FileIndexCli(cmd).run();
+            int status = new FileIndexCli(cmd).run();
+            if (status != 0) {
+                System.exit(status);
+            }
         } catch (IOException | ParseException | java.text.ParseException e) {
             LOG.error("Failed to run fileindex", e);
             System.err.println("Failed to run fileindex: " + e.getMessage());
@@ -0,0 +1,55 @@
+package de.silef.service.file.hash;
+
+import java.util.Arrays;
+
+/**
+ * Resumable digest state of a file prefix. The check value identifies samples of the prefix
+ * content, so most rewritten files are detected before hashing is resumed. Changes between
+ * the samples are not detected, so a resumed state is not a verified content hash.
+ */
+public class DigestState {
+
+    private long length;
+
+    private byte[] state;
+
+    private byte[] check;
+
+    private boolean resumed;
+
+    public DigestState(long length, byte[] state, byte[] check) {
+        this(length, state, check, false);
+    }
+
+    public DigestState(long length, byte[] state, byte[] check, boolean resumed) {
+        assert state != null : "State must not be null";
+        assert check != null : "Check must not be null";
+
+        this.length = length;
+        this.state = Arrays.copyOf(state, state.length);
+        this.check = Arrays.copyOf(check, check.length);
+        this.resumed = resumed;
+    }
+
+    /**
+     * @return Count of hashed bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public byte[] getState() {
+        return Arrays.copyOf(state, state.length);
+    }
+
+    public byte[] getCheck() {
+        return Arrays.copyOf(check, check.length);
+    }
+
+    /**
+     * @return true if the state continues a previous state instead of hashing the whole content
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+}
@@ -0,0 +1,58 @@
+package de.silef.service.file.hash;
+
+/**
+ * Content defined chunk of a file with the hash of its content.
+ */
+public class FileChunk {
+
+    private long offset;
+
+    private int length;
+
+    private FileHash hash;
+
+    public FileChunk(long offset, int length, FileHash hash) {
+        assert hash != null : "Hash must not be null";
+
+        this.offset = offset;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public FileHash getHash() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        FileChunk fileChunk = (FileChunk) o;
+
+        if (offset != fileChunk.offset) return false;
+        if (length != fileChunk.length) return false;
+        return hash.equals(fileChunk.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (offset ^ (offset >>> 32));
+        result = 31 * result + length;
+        result = 31 * result + hash.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return offset + "+" + length + ":" + hash;
+    }
+}
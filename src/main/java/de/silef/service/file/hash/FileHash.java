@@ -2,6 +2,7 @@ package de.silef.service.file.hash;
 
 import de.silef.service.file.util.HashUtil;
 
+import java.security.MessageDigest;
 import java.util.Arrays;
 
 /**
@@ -9,15 +10,17 @@ import java.util.Arrays;
  */
 public class FileHash {
 
-    public static final int LENGTH = 20;
-
-    public static final FileHash ZERO = new FileHash(new byte[20]);
+    /**
+     * Empty hash of nodes without calculated content hash. Use {@link #isZero()} to check
+     * empty hashes of any length
+     */
+    public static final FileHash ZERO = new FileHash(new byte[HashAlgorithm.SHA1.getLength()]);
 
     private byte[] bytes;
 
     public FileHash(byte[] bytes) {
         assert bytes != null : "Hash bytes must not be null";
-        assert bytes.length == LENGTH : "Hash bytes must have the length of " + LENGTH;
+        assert bytes.length > 0 : "Hash bytes must not be empty";
 
         this.bytes = Arrays.copyOf(bytes, bytes.length);
     }
@@ -43,7 +46,29 @@ public class FileHash {
         return HashUtil.toHex(bytes);
     }
 
+    public boolean isZero() {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getLength() {
+        return bytes.length;
+    }
+
     public byte[] getBytes() {
         return Arrays.copyOf(bytes, bytes.length);
     }
+
+    /**
+     * Update the digest with the hash bytes without copying them
+     *
+     * @param digest Digest to update
+     */
+    public void update(MessageDigest digest) {
+        digest.update(bytes);
+    }
 }
@@ -0,0 +1,83 @@
+package de.silef.service.file.hash;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash algorithms for content and directory hashes. The id is stored in the index header.
+ *
+ * XXH64 is a non cryptographic hash which is much faster than SHA-1. It detects accidental
+ * changes but does not protect against manipulated content.
+ */
+public enum HashAlgorithm {
+    SHA1  (1, "sha1", 20),
+    XXH64 (2, "xxh64", 8);
+
+    int id;
+
+    String name;
+
+    int length;
+
+    HashAlgorithm(int id, String name, int length) {
+        this.id = id;
+        this.name = name;
+        this.length = length;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Digest length in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public MessageDigest createDigest() throws NoSuchAlgorithmException {
+        if (this == XXH64) {
+            return new Xxh64Digest();
+        }
+        return MessageDigest.getInstance("SHA1");
+    }
+
+    /**
+     * @return Digest which can persist its state. The SHA-1 digest is an in-tree implementation
+     * which is slower than the digest of the JDK provider
+     */
+    public ResumableDigest createResumableDigest() {
+        if (this == XXH64) {
+            return new Xxh64Digest();
+        }
+        return new Sha1Digest();
+    }
+
+    public static HashAlgorithm create(int id) throws IOException {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.id == id) {
+                return algorithm;
+            }
+        }
+        throw new IOException("Unknown hash algorithm: " + id);
+    }
+
+    /**
+     * @param name Algorithm name, case insensitive
+     * @return Hash algorithm or null if unknown
+     */
+    public static HashAlgorithm forName(String name) {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.name.equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,37 @@
+package de.silef.service.file.hash;
+
+import java.io.IOException;
+
+/**
+ * Kind of a content hash. A fingerprint hashes the file size and samples of the content
+ * only. It detects most changes of huge files but not changes between the samples. A
+ * chunks hash is the hash of the concatenated hashes of content defined chunks. A tree
+ * hash is the root of a Merkle tree over fixed size blocks. A resumed hash is the content
+ * hash of a file whose previously hashed prefix was verified by samples only.
+ */
+public enum HashKind {
+    CONTENT     (0),
+    FINGERPRINT (1),
+    CHUNKS      (2),
+    TREE        (3),
+    RESUMED     (4);
+
+    int id;
+
+    HashKind(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public static HashKind create(int id) throws IOException {
+        for (HashKind kind : values()) {
+            if (kind.id == id) {
+                return kind;
+            }
+        }
+        throw new IOException("Unknown hash kind: " + id);
+    }
+}
@@ -0,0 +1,27 @@
+package de.silef.service.file.hash;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * Message digest which can export its state and continue later with further content.
+ */
+public abstract class ResumableDigest extends MessageDigest {
+
+    protected ResumableDigest(String algorithm) {
+        super(algorithm);
+    }
+
+    /**
+     * @return Internal state of the digest including the total length and buffered bytes
+     */
+    public abstract byte[] getState();
+
+    /**
+     * Restore the digest state of {@link #getState()}
+     *
+     * @param state Exported digest state
+     * @throws IOException if the state is invalid
+     */
+    public abstract void setState(byte[] state) throws IOException;
+}
@@ -0,0 +1,184 @@
+package de.silef.service.file.hash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SHA-1 with an exportable state. The digest is equal to the SHA-1 of the JDK provider but
+ * the provider does not allow to persist an intermediate state.
+ */
+class Sha1Digest extends ResumableDigest {
+
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int STATE_SIZE = 5 * 4 + 8;
+
+    private final int[] h = new int[5];
+
+    private final int[] w = new int[80];
+
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+
+    private long totalLength;
+
+    Sha1Digest() {
+        super("SHA1");
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 20;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        block[blockLength++] = input;
+        totalLength++;
+        if (blockLength == BLOCK_SIZE) {
+            processBlock(block, 0);
+            blockLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        totalLength += len;
+        if (blockLength > 0) {
+            int fill = Math.min(BLOCK_SIZE - blockLength, len);
+            System.arraycopy(input, offset, block, blockLength, fill);
+            blockLength += fill;
+            offset += fill;
+            len -= fill;
+            if (blockLength < BLOCK_SIZE) {
+                return;
+            }
+            processBlock(block, 0);
+            blockLength = 0;
+        }
+        while (len >= BLOCK_SIZE) {
+            processBlock(input, offset);
+            offset += BLOCK_SIZE;
+            len -= BLOCK_SIZE;
+        }
+        if (len > 0) {
+            System.arraycopy(input, offset, block, 0, len);
+            blockLength = len;
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long bitLength = totalLength << 3;
+
+        block[blockLength++] = (byte) 0x80;
+        if (blockLength > BLOCK_SIZE - 8) {
+            while (blockLength < BLOCK_SIZE) {
+                block[blockLength++] = 0;
+            }
+            processBlock(block, 0);
+            blockLength = 0;
+        }
+        while (blockLength < BLOCK_SIZE - 8) {
+            block[blockLength++] = 0;
+        }
+        for (int i = 7; i >= 0; i--) {
+            block[blockLength++] = (byte) (bitLength >>> (i * 8));
+        }
+        processBlock(block, 0);
+
+        byte[] result = new byte[20];
+        for (int i = 0; i < 5; i++) {
+            result[i * 4] = (byte) (h[i] >>> 24);
+            result[i * 4 + 1] = (byte) (h[i] >>> 16);
+            result[i * 4 + 2] = (byte) (h[i] >>> 8);
+            result[i * 4 + 3] = (byte) h[i];
+        }
+        engineReset();
+        return result;
+    }
+
+    @Override
+    protected void engineReset() {
+        h[0] = 0x67452301;
+        h[1] = 0xEFCDAB89;
+        h[2] = 0x98BADCFE;
+        h[3] = 0x10325476;
+        h[4] = 0xC3D2E1F0;
+        blockLength = 0;
+        totalLength = 0;
+    }
+
+    private void processBlock(byte[] input, int offset) {
+        for (int i = 0; i < 16; i++) {
+            int j = offset + i * 4;
+            w[i] = (input[j] << 24) | ((input[j + 1] & 0xFF) << 16) | ((input[j + 2] & 0xFF) << 8) | (input[j + 3] & 0xFF);
+        }
+        for (int i = 16; i < 80; i++) {
+            w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+        }
+
+        int a = h[0];
+        int b = h[1];
+        int c = h[2];
+        int d = h[3];
+        int e = h[4];
+        for (int i = 0; i < 80; i++) {
+            int f;
+            int k;
+            if (i < 20) {
+                f = (b & c) | (~b & d);
+                k = 0x5A827999;
+            } else if (i < 40) {
+                f = b ^ c ^ d;
+                k = 0x6ED9EBA1;
+            } else if (i < 60) {
+                f = (b & c) | (b & d) | (c & d);
+                k = 0x8F1BBCDC;
+            } else {
+                f = b ^ c ^ d;
+                k = 0xCA62C1D6;
+            }
+            int temp = Integer.rotateLeft(a, 5) + f + e + k + w[i];
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = temp;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+    }
+
+    @Override
+    public byte[] getState() {
+        ByteBuffer state = ByteBuffer.allocate(STATE_SIZE + blockLength);
+        for (int value : h) {
+            state.putInt(value);
+        }
+        state.putLong(totalLength);
+        state.put(block, 0, blockLength);
+        return state.array();
+    }
+
+    @Override
+    public void setState(byte[] state) throws IOException {
+        if (state.length < STATE_SIZE || state.length - STATE_SIZE >= BLOCK_SIZE) {
+            throw new IOException("Invalid SHA-1 digest state");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        for (int i = 0; i < h.length; i++) {
+            h[i] = buffer.getInt();
+        }
+        totalLength = buffer.getLong();
+        blockLength = buffer.remaining();
+        if (totalLength % BLOCK_SIZE != blockLength) {
+            throw new IOException("Invalid SHA-1 digest state");
+        }
+        buffer.get(block, 0, blockLength);
+    }
+}
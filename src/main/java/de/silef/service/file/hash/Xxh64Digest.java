@@ -0,0 +1,194 @@
+package de.silef.service.file.hash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming XXH64 with seed 0. The digest is the 8 byte big endian hash value like the
+ * canonical representation of the reference implementation.
+ */
+class Xxh64Digest extends ResumableDigest {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private static final int STRIPE_SIZE = 32;
+
+    private static final int STATE_SIZE = 5 * 8;
+
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+
+    private long totalLength;
+
+    private final byte[] stripe = new byte[STRIPE_SIZE];
+    private final ByteBuffer stripeBuffer = ByteBuffer.wrap(stripe).order(ByteOrder.LITTLE_ENDIAN);
+    private int stripeLength;
+
+    Xxh64Digest() {
+        super("XXH64");
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 8;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        stripe[stripeLength++] = input;
+        totalLength++;
+        if (stripeLength == STRIPE_SIZE) {
+            processStripe(stripeBuffer, 0);
+            stripeLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        engineUpdate(ByteBuffer.wrap(input, offset, len));
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        int len = input.remaining();
+        totalLength += len;
+
+        int position = input.position();
+        int limit = input.limit();
+        if (stripeLength > 0) {
+            int fill = Math.min(STRIPE_SIZE - stripeLength, limit - position);
+            for (int i = 0; i < fill; i++) {
+                stripe[stripeLength++] = input.get(position++);
+            }
+            if (stripeLength < STRIPE_SIZE) {
+                input.position(position);
+                return;
+            }
+            processStripe(stripeBuffer, 0);
+            stripeLength = 0;
+        }
+
+        ByteOrder order = input.order();
+        input.order(ByteOrder.LITTLE_ENDIAN);
+        while (limit - position >= STRIPE_SIZE) {
+            processStripe(input, position);
+            position += STRIPE_SIZE;
+        }
+        input.order(order);
+
+        while (position < limit) {
+            stripe[stripeLength++] = input.get(position++);
+        }
+        input.position(position);
+    }
+
+    private void processStripe(ByteBuffer buffer, int position) {
+        v1 = round(v1, buffer.getLong(position));
+        v2 = round(v2, buffer.getLong(position + 8));
+        v3 = round(v3, buffer.getLong(position + 16));
+        v4 = round(v4, buffer.getLong(position + 24));
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long hash;
+        if (totalLength >= STRIPE_SIZE) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = v3 + PRIME5;
+        }
+        hash += totalLength;
+
+        int position = 0;
+        while (position + 8 <= stripeLength) {
+            hash ^= round(0, stripeBuffer.getLong(position));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+            position += 8;
+        }
+        if (position + 4 <= stripeLength) {
+            hash ^= (stripeBuffer.getInt(position) & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            position += 4;
+        }
+        while (position < stripeLength) {
+            hash ^= (stripe[position] & 0xFFL) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+            position++;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+
+        engineReset();
+
+        byte[] result = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            result[i] = (byte) hash;
+            hash >>>= 8;
+        }
+        return result;
+    }
+
+    @Override
+    protected void engineReset() {
+        v1 = PRIME1 + PRIME2;
+        v2 = PRIME2;
+        v3 = 0;
+        v4 = -PRIME1;
+        totalLength = 0;
+        stripeLength = 0;
+    }
+
+    @Override
+    public byte[] getState() {
+        ByteBuffer state = ByteBuffer.allocate(STATE_SIZE + stripeLength);
+        state.putLong(v1).putLong(v2).putLong(v3).putLong(v4);
+        state.putLong(totalLength);
+        state.put(stripe, 0, stripeLength);
+        return state.array();
+    }
+
+    @Override
+    public void setState(byte[] state) throws IOException {
+        if (state.length < STATE_SIZE || state.length - STATE_SIZE >= STRIPE_SIZE) {
+            throw new IOException("Invalid XXH64 digest state");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        v1 = buffer.getLong();
+        v2 = buffer.getLong();
+        v3 = buffer.getLong();
+        v4 = buffer.getLong();
+        totalLength = buffer.getLong();
+        stripeLength = buffer.remaining();
+        if (totalLength % STRIPE_SIZE != stripeLength) {
+            throw new IOException("Invalid XXH64 digest state");
+        }
+        buffer.get(stripe, 0, stripeLength);
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME1 + PRIME4;
+    }
+}
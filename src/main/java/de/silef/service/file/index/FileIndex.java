@@ -1,16 +1,31 @@
 package de.silef.service.file.index;
 
+import de.silef.service.file.hash.DigestState;
+import de.silef.service.file.hash.FileChunk;
 import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
 import de.silef.service.file.util.HashUtil;
+import de.silef.service.file.node.FileMode;
 import de.silef.service.file.node.IndexNode;
 import de.silef.service.file.node.IndexNodeCreator;
+import de.silef.service.file.node.IndexNodeTable;
+import de.silef.service.file.node.MappedIndexNodeTable;
 import de.silef.service.file.util.ByteUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
@@ -29,18 +44,51 @@ public class FileIndex {
 
     private Predicate<IndexNode> hashNodeFilter;
 
+    private int scanThreads = IndexNodeCreator.getDefaultParallelism();
+
+    private boolean incrementalScan = false;
+
+    private int hashThreads = 1;
+
+    private IndexUpdater.HashOrder hashOrder = IndexUpdater.HashOrder.PATH;
+
+    private long fingerprintMinSize = 0;
+
+    private long resumableMinSize = 0;
+
+    private long chunkMinSize = 0;
+
+    private long treeHashMinSize = 0;
+
     public FileIndex(Path base) throws IOException {
         this(base, p -> true, n -> true);
     }
 
     public FileIndex(Path base, Predicate<Path> indexPathFilter, Predicate<IndexNode> hashNodeFilter) throws IOException {
-        this(base, IndexNodeCreator.create(base, indexPathFilter), indexPathFilter, hashNodeFilter);
+        this(base, indexPathFilter, hashNodeFilter, IndexNodeCreator.getDefaultParallelism());
+    }
+
+    public FileIndex(Path base, Predicate<Path> indexPathFilter, Predicate<IndexNode> hashNodeFilter, int scanThreads) throws IOException {
+        this(base, IndexNodeCreator.create(base, indexPathFilter, scanThreads), indexPathFilter, hashNodeFilter);
+        this.scanThreads = scanThreads;
     }
 
     public FileIndex(Path base, IndexNode root) {
         this(base, root, p -> true, n -> true);
     }
 
+    /**
+     * Create an index of a node table. Directories are read from the table on first access
+     *
+     * @param base Base directory
+     * @param table Node table. It must not be modified while the index is used
+     * @param indexPathFilter Path filter
+     * @param hashNodeFilter Filter of nodes to hash
+     */
+    public FileIndex(Path base, IndexNodeTable table, Predicate<Path> indexPathFilter, Predicate<IndexNode> hashNodeFilter) {
+        this(base, IndexNode.createRootFromTable(table), indexPathFilter, hashNodeFilter);
+    }
+
     public FileIndex(Path base, IndexNode root, Predicate<Path> indexPathFilter, Predicate<IndexNode> hashNodeFilter) {
         this.base = base;
         this.root = root;
@@ -56,8 +104,12 @@ public class FileIndex {
     }
 
     public IndexChange getChanges() throws IOException {
-        FileIndex current = new FileIndex(base, indexPathFilter, hashNodeFilter);
-        return current.getChanges(this);
+        IndexNode previousRoot = incrementalScan ? root : null;
+        IndexNode currentRoot = IndexNodeCreator.create(base, indexPathFilter, scanThreads, previousRoot);
+        FileIndex current = new FileIndex(base, currentRoot, indexPathFilter, hashNodeFilter);
+        current.setScanThreads(scanThreads);
+        IndexChange changes = current.getChanges(this);
+        return new IndexChange(base, changes.getCreated(), changes.getModified(), changes.getRemoved(), currentRoot);
     }
 
     public IndexChange getChanges(FileIndex other) {
@@ -74,10 +126,54 @@ public class FileIndex {
 
     public void updateChanges(IndexChange change, boolean suppressErrors) throws IOException {
         LOG.debug("Updating index with change: {}", change);
-        new IndexUpdater(base, root).update(change, createHashUpdater(), suppressErrors);
+        IndexUpdater updater = new IndexUpdater(base, root);
+        updater.setHashThreads(hashThreads);
+        updater.setHashOrder(hashOrder);
+        // Blocks of tree hashed files share one pool of the size of the hash threads
+        ForkJoinPool treeHashPool = treeHashMinSize > 0 ? new ForkJoinPool(hashThreads) : null;
+        try {
+            updater.update(change, createHashUpdater(treeHashPool), suppressErrors);
+        } finally {
+            if (treeHashPool != null) {
+                treeHashPool.shutdown();
+            }
+        }
+        // Skipped files would be hidden from incremental scans by current directory metadata
+        if (change.getScanRoot() != null && !suppressErrors) {
+            updateDirectoryMetadata(change.getScanRoot());
+        }
+    }
+
+    /**
+     * The updater applies file changes only. Directories take the metadata of the scan, so
+     * incremental scans do not list directories which changed once again and again. The
+     * racy check of the next scan refers to the time of this scan
+     *
+     * @param scanRoot Root of the scan of all applied changes
+     */
+    private void updateDirectoryMetadata(IndexNode scanRoot) {
+        root.copyDirectoryMetadataFrom(scanRoot);
+        root.setScanTime(scanRoot.getScanTime());
+        updateDirectoryMetadata(root, scanRoot);
+    }
+
+    private void updateDirectoryMetadata(IndexNode dir, IndexNode scanDir) {
+        for (IndexNode scanChild : scanDir.getChildren()) {
+            if (!scanChild.getMode().isDirectory()) {
+                continue;
+            }
+            IndexNode child = dir.findChildByName(scanChild.getName());
+            if (child != null && child.getMode().isDirectory()) {
+                child.copyDirectoryMetadataFrom(scanChild);
+                updateDirectoryMetadata(child, scanChild);
+            }
+        }
     }
 
-    private Consumer<IndexNode> createHashUpdater() {
+    private Consumer<IndexNode> createHashUpdater(ForkJoinPool treeHashPool) {
+        HashAlgorithm hashAlgorithm = root.getHashAlgorithm();
+        // Hard linked files are hashed once per update
+        ConcurrentMap<List<Long>, FutureTask<IndexNode>> hashedInodes = new ConcurrentHashMap<>();
         return node -> {
                 if (!hashNodeFilter.test(node)) {
                     return;
@@ -87,33 +183,245 @@ public class FileIndex {
                     return;
                 }
                 try {
-                    byte[] hash;
                     if (Files.isRegularFile(file)) {
-                        hash = HashUtil.getHash(file);
+                        updateLinkedContentHash(hashedInodes, hashAlgorithm, node, file, treeHashPool);
                     } else {
                         Path link = Files.readSymbolicLink(file);
-                        hash = HashUtil.getHash(link.toString().getBytes());
+                        byte[] hash = HashUtil.getHash(hashAlgorithm, link.toString().getBytes());
+                        node.setHash(new FileHash(hash));
+                        node.setDigestState(null);
+                        node.setChunks(null);
                     }
-                    node.setHash(new FileHash(hash));
                 } catch (IOException e) {
                     LOG.warn("Could not update content hash from {}", file);
                 }
             };
     }
 
+    private void updateLinkedContentHash(ConcurrentMap<List<Long>, FutureTask<IndexNode>> hashedInodes, HashAlgorithm hashAlgorithm, IndexNode node, Path file, ForkJoinPool treeHashPool) throws IOException {
+        if (node.getDevice() == 0 || node.getInode() == 0) {
+            updateContentHash(hashAlgorithm, node, file, treeHashPool);
+            return;
+        }
+        FutureTask<IndexNode> task = new FutureTask<>(() -> {
+            updateContentHash(hashAlgorithm, node, file, treeHashPool);
+            return node;
+        });
+        FutureTask<IndexNode> hashed = hashedInodes.putIfAbsent(Arrays.asList(node.getDevice(), node.getInode()), task);
+        if (hashed == null) {
+            task.run();
+            hashed = task;
+        }
+        try {
+            IndexNode linkedNode = hashed.get();
+            if (linkedNode != node) {
+                LOG.debug("Reuse content hash of hard link {} for {}", linkedNode.getRelativePath(), node.getRelativePath());
+                node.copyHashFrom(linkedNode);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Content hash calculation was interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not update content hash", e.getCause());
+        }
+    }
+
+    private void updateContentHash(HashAlgorithm hashAlgorithm, IndexNode node, Path file, ForkJoinPool treeHashPool) throws IOException {
+        byte[] hash;
+        HashKind hashKind = HashKind.CONTENT;
+        DigestState digestState = null;
+        List<FileChunk> chunks = null;
+        if (fingerprintMinSize > 0 && node.getSize() >= fingerprintMinSize) {
+            hash = HashUtil.getFingerprint(hashAlgorithm, file);
+            hashKind = HashKind.FINGERPRINT;
+        } else if (chunkMinSize > 0 && node.getSize() >= chunkMinSize) {
+            chunks = HashUtil.getChunks(hashAlgorithm, file);
+            hash = HashUtil.getHash(hashAlgorithm, chunks);
+            hashKind = HashKind.CHUNKS;
+        } else if (treeHashMinSize > 0 && node.getSize() >= treeHashMinSize) {
+            hash = HashUtil.getTreeHash(hashAlgorithm, file, treeHashPool);
+            hashKind = HashKind.TREE;
+        } else if (resumableMinSize > 0 && node.getSize() >= resumableMinSize) {
+            digestState = HashUtil.getDigestState(hashAlgorithm, file, node.getDigestState());
+            hash = HashUtil.getHash(hashAlgorithm, digestState);
+            if (digestState.isResumed()) {
+                hashKind = HashKind.RESUMED;
+            }
+        } else {
+            hash = HashUtil.getHash(hashAlgorithm, file);
+        }
+        node.setHash(new FileHash(hash), hashKind);
+        node.setDigestState(digestState);
+        node.setChunks(chunks);
+    }
+
     public IndexNode getRoot() {
         return root;
     }
 
+    /**
+     * Write the nodes as memory mappable node table. Digest states and chunks are not part
+     * of the table
+     *
+     * @param file Node table file
+     * @throws IOException
+     * @see #openNodeTable(Path, Path, Predicate, Predicate)
+     */
+    public void writeNodeTable(Path file) throws IOException {
+        MappedIndexNodeTable.write(root, file);
+    }
+
+    /**
+     * Open an index of a mapped node table. Directories are read from the mapped file on
+     * first access, so nodes of untouched subtrees stay outside the heap.
+     *
+     * The nodes lack digest states, chunks and the scan time. Rewrite the index from the
+     * index file and its journal instead of from this index
+     *
+     * @param base Base directory
+     * @param file Node table file of {@link #writeNodeTable(Path)}
+     * @param indexPathFilter Path filter
+     * @param hashNodeFilter Filter of nodes to hash
+     * @return Index of the node table
+     * @throws IOException
+     */
+    public static FileIndex openNodeTable(Path base, Path file, Predicate<Path> indexPathFilter, Predicate<IndexNode> hashNodeFilter) throws IOException {
+        return new FileIndex(base, MappedIndexNodeTable.open(file), indexPathFilter, hashNodeFilter);
+    }
+
     public long getTotalFileSize() {
-        return root.stream().map(IndexNode::getSize).reduce(0L, (a, b) -> a + b);
+        return root.getTotalFileSize();
     }
 
     public long getTotalFileCount() {
-        return root.stream().count();
+        return root.getTotalFileCount();
     }
 
     public Path getBase() {
         return base;
     }
+
+    public Predicate<Path> getIndexPathFilter() {
+        return indexPathFilter;
+    }
+
+    public HashAlgorithm getHashAlgorithm() {
+        return root.getHashAlgorithm();
+    }
+
+    /**
+     * Set the hash algorithm of a new index. Directory hashes are recalculated but existing
+     * content hashes are kept
+     *
+     * @param hashAlgorithm Hash algorithm of content and directory hashes
+     */
+    public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+        root.setHashAlgorithm(hashAlgorithm);
+        root.stream()
+                .filter(n -> n.getMode() == FileMode.DIRECTORY)
+                .forEach(IndexNode::resetHashesToRootNode);
+    }
+
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    public int getHashThreads() {
+        return hashThreads;
+    }
+
+    /**
+     * @param hashThreads Count of threads to calculate file content hashes. The hash node filter must be thread safe
+     */
+    public void setHashThreads(int hashThreads) {
+        this.hashThreads = hashThreads;
+    }
+
+    public IndexUpdater.HashOrder getHashOrder() {
+        return hashOrder;
+    }
+
+    /**
+     * @param hashOrder Order to calculate content hashes
+     */
+    public void setHashOrder(IndexUpdater.HashOrder hashOrder) {
+        this.hashOrder = hashOrder;
+    }
+
+    public long getFingerprintMinSize() {
+        return fingerprintMinSize;
+    }
+
+    /**
+     * Files of this size and above get a fingerprint of sampled content instead of a full
+     * content hash. Update fingerprinted files with a fingerprint size of 0 to get full hashes
+     *
+     * @param fingerprintMinSize Minimum file size in bytes or 0 to hash all files completely
+     */
+    public void setFingerprintMinSize(long fingerprintMinSize) {
+        this.fingerprintMinSize = fingerprintMinSize;
+    }
+
+    public long getResumableMinSize() {
+        return resumableMinSize;
+    }
+
+    /**
+     * Files of this size and above store their digest state. If such a file only grows, the
+     * hash calculation is resumed and only the appended content is read
+     *
+     * @param resumableMinSize Minimum file size in bytes or 0 to disable resumable hashes
+     */
+    public void setResumableMinSize(long resumableMinSize) {
+        this.resumableMinSize = resumableMinSize;
+    }
+
+    public long getChunkMinSize() {
+        return chunkMinSize;
+    }
+
+    /**
+     * Files of this size and above are split into content defined chunks. The chunk hashes
+     * are stored and the content hash is the hash of the chunk hashes
+     *
+     * @param chunkMinSize Minimum file size in bytes or 0 to disable chunking
+     */
+    public void setChunkMinSize(long chunkMinSize) {
+        this.chunkMinSize = chunkMinSize;
+    }
+
+    public long getTreeHashMinSize() {
+        return treeHashMinSize;
+    }
+
+    /**
+     * Files of this size and above are hashed as Merkle tree of blocks. The blocks of a single
+     * file are hashed in parallel by the count of hash threads
+     *
+     * @param treeHashMinSize Minimum file size in bytes or 0 to disable tree hashes
+     */
+    public void setTreeHashMinSize(long treeHashMinSize) {
+        this.treeHashMinSize = treeHashMinSize;
+    }
+
+    public boolean isIncrementalScan() {
+        return incrementalScan;
+    }
+
+    /**
+     * Rescan only directories which changed since the index was created. The entries of unchanged
+     * directories are still read to detect modified files
+     *
+     * @param incrementalScan true to skip listing of unchanged directories
+     */
+    public void setIncrementalScan(boolean incrementalScan) {
+        this.incrementalScan = incrementalScan;
+    }
 }
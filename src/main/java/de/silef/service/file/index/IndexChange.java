@@ -1,16 +1,17 @@
 package de.silef.service.file.index;
 
-import de.silef.service.file.hash.FileHash;
 import de.silef.service.file.node.FileMode;
 import de.silef.service.file.node.IndexNode;
 import de.silef.service.file.util.ByteUtil;
 
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Created by sebastian on 17.09.16.
@@ -25,13 +26,37 @@ public class IndexChange {
 
     private Set<IndexNode> removed;
 
+    /**
+     * Root of the scan which detected the changes or null
+     */
+    private IndexNode scanRoot;
+
     public IndexChange(Path base, Set<IndexNode> created, Set<IndexNode> modified, Set<IndexNode> removed) {
+        this(base, created, modified, removed, null);
+    }
+
+    /**
+     * @param scanRoot Root of the scan which detected all changes of the index. The index takes
+     *                 the directory metadata and scan time of the scan after the changes are
+     *                 applied. Null if the changes are not complete
+     */
+    public IndexChange(Path base, Set<IndexNode> created, Set<IndexNode> modified, Set<IndexNode> removed, IndexNode scanRoot) {
         this.base = base;
         this.created = created;
         this.modified = modified;
         this.removed = removed;
-    }
-
+        this.scanRoot = scanRoot;
+    }
+
+    /**
+     * Compares the file nodes of two trees. The roots might also be file nodes or null for an
+     * empty tree, e.g. to compare a single path
+     *
+     * @param base Base path
+     * @param primaryRoot Root of current tree
+     * @param otherRoot Root of previous tree
+     * @return Changes from other to primary tree
+     */
     public static IndexChange create(Path base, IndexNode primaryRoot, IndexNode otherRoot) {
         Map<Path, IndexNode> primary = getFileNodes(primaryRoot);
         Map<Path, IndexNode> other = getFileNodes(otherRoot);
@@ -57,14 +82,18 @@ public class IndexChange {
                 continue;
             }
 
-            if (!sourceNode.getHash().equals(FileHash.ZERO) && sourceNode.getInode() == targetNode.getInode()) {
-                targetNode.setHash(sourceNode.getHash());
+            if (!sourceNode.getHash().isZero() && sourceNode.getInode() == targetNode.getInode()) {
+                targetNode.copyHashFrom(sourceNode);
             }
         }
     }
 
     private static Map<Path, IndexNode> getFileNodes(IndexNode root) {
-        return root.stream()
+        if (root == null) {
+            return new HashMap<>();
+        }
+        Stream<IndexNode> nodes = root.getMode().isDirectory() ? root.stream() : Stream.of(root);
+        return nodes
                 .filter(n -> n.getMode() == FileMode.FILE)
                 .collect(Collectors.toMap(IndexNode::getRelativePath, n -> n));
     }
@@ -88,6 +117,22 @@ public class IndexChange {
                 .collect(Collectors.toSet());
     }
 
+    /**
+     * Merge changes of disjoint paths
+     *
+     * @param other Other change
+     * @return Merged change
+     */
+    public IndexChange merge(IndexChange other) {
+        Set<IndexNode> mergedCreated = new HashSet<>(created);
+        mergedCreated.addAll(other.getCreated());
+        Set<IndexNode> mergedModified = new HashSet<>(modified);
+        mergedModified.addAll(other.getModified());
+        Set<IndexNode> mergedRemoved = new HashSet<>(removed);
+        mergedRemoved.addAll(other.getRemoved());
+        return new IndexChange(base, mergedCreated, mergedModified, mergedRemoved);
+    }
+
     public boolean hasChanges() {
         return !modified.isEmpty() || !created.isEmpty() || !removed.isEmpty();
     }
@@ -108,6 +153,10 @@ public class IndexChange {
         return removed;
     }
 
+    public IndexNode getScanRoot() {
+        return scanRoot;
+    }
+
     public long getCreatedFileSize() {
         return sumSize(created);
     }
@@ -2,14 +2,16 @@ package de.silef.service.file.index;
 
 import de.silef.service.file.node.FileMode;
 import de.silef.service.file.node.IndexNode;
+import de.silef.service.file.node.IndexNodeCreator;
 import de.silef.service.file.util.ByteUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -20,10 +22,28 @@ public class IndexUpdater {
 
     private static final Logger LOG = LoggerFactory.getLogger(IndexUpdater.class);
 
+    private static final long SMALL_FILE_SIZE = 1 << 16;
+    private static final long BATCH_SIZE = 1 << 20;
+    private static final int BATCH_FILE_COUNT = 256;
+
+    /**
+     * Order of file updates. On rotational disks the inode order is usually closer to the
+     * physical order than the path order
+     */
+    public enum HashOrder {
+        PATH,
+        INODE,
+        DEVICE_INODE
+    }
+
     private Path base;
 
     private IndexNode root;
 
+    private int hashThreads = 1;
+
+    private HashOrder hashOrder = HashOrder.PATH;
+
     public IndexUpdater(Path base, IndexNode root) {
         this.base = base;
         this.root = root;
@@ -33,6 +53,31 @@ public class IndexUpdater {
         return root;
     }
 
+    public int getHashThreads() {
+        return hashThreads;
+    }
+
+    /**
+     * Set the count of threads for the file update consumer. If more than one thread is used,
+     * the consumer must be thread safe. The tree is only modified by the calling thread
+     *
+     * @param hashThreads Count of threads
+     */
+    public void setHashThreads(int hashThreads) {
+        if (hashThreads < 1) {
+            throw new IllegalArgumentException("Hash thread count must be positive");
+        }
+        this.hashThreads = hashThreads;
+    }
+
+    public HashOrder getHashOrder() {
+        return hashOrder;
+    }
+
+    public void setHashOrder(HashOrder hashOrder) {
+        this.hashOrder = hashOrder;
+    }
+
     public void update(IndexChange change, Consumer<IndexNode> fileUpdateConsumer, boolean suppressErrors) throws IOException {
         if (!change.hasChanges()) {
             return;
@@ -47,41 +92,137 @@ public class IndexUpdater {
         updateAll(updateNodesSorted, fileUpdateConsumer, suppressErrors);
         removeAll(change.getRemoved());
 
-        root.getHash();
+        IndexNodeCreator.calculateDirectoryHashes(root, hashThreads);
     }
 
     private void updateAll(Collection<IndexNode> nodes, Consumer<IndexNode> fileUpdateConsumer, boolean suppressErrors) throws IOException {
         int updatedFiles = 0;
         long updatedBytes = 0;
+        List<IndexNode> updatedNodes = new ArrayList<>(nodes.size());
         for (IndexNode node : nodes) {
             Path path = node.getRelativePath();
-            Path file = base.resolve(path);
             try {
-                updatePath(path, fileUpdateConsumer);
+                IndexNode updatedNode = updatePath(path);
+                updatedNodes.add(updatedNode);
                 updatedFiles++;
-                updatedBytes += Files.size(file);
+                updatedBytes += updatedNode.getSize();
             } catch (IOException e) {
                 if (!suppressErrors) {
                     throw e;
                 } else {
-                    LOG.info("Could not index file {}", file);
+                    LOG.info("Could not index file {}", base.resolve(path));
                 }
             }
         }
+
+        consumeAll(sortByHashOrder(updatedNodes), fileUpdateConsumer);
+        for (IndexNode node : updatedNodes) {
+            node.getParent().resetHashesToRootNode();
+        }
+
         if (LOG.isInfoEnabled()) {
             LOG.info("Updated index with {} files of {}", updatedFiles, ByteUtil.toHumanSize(updatedBytes));
         }
     }
 
-    private void updatePath(Path path, Consumer<IndexNode> fileUpdateConsumer) throws IOException {
+    private List<IndexNode> sortByHashOrder(List<IndexNode> nodes) {
+        Comparator<IndexNode> comparator;
+        if (hashOrder == HashOrder.INODE) {
+            comparator = Comparator.comparingLong(IndexNode::getInode);
+        } else if (hashOrder == HashOrder.DEVICE_INODE) {
+            comparator = Comparator.comparingLong(IndexNode::getDevice).thenComparingLong(IndexNode::getInode);
+        } else {
+            return nodes;
+        }
+        // The sort is stable, so nodes without inode keep their path order
+        List<IndexNode> sorted = new ArrayList<>(nodes);
+        sorted.sort(comparator);
+        return sorted;
+    }
+
+    private void consumeAll(List<IndexNode> nodes, Consumer<IndexNode> fileUpdateConsumer) throws IOException {
+        if (hashThreads == 1 || nodes.size() < 2) {
+            nodes.forEach(fileUpdateConsumer);
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(hashThreads);
+        try {
+            CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+            int maxPendingTasks = hashThreads * 2;
+            int pendingTasks = 0;
+            for (List<IndexNode> batch : createBatches(nodes)) {
+                if (pendingTasks == maxPendingTasks) {
+                    waitForTask(completionService);
+                    pendingTasks--;
+                }
+                completionService.submit(() -> {
+                    batch.forEach(fileUpdateConsumer);
+                    return null;
+                });
+                pendingTasks++;
+            }
+            while (pendingTasks > 0) {
+                waitForTask(completionService);
+                pendingTasks--;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Group consecutive small files to a single task to reduce the scheduling overhead
+     */
+    private List<List<IndexNode>> createBatches(List<IndexNode> nodes) {
+        List<List<IndexNode>> batches = new ArrayList<>();
+        List<IndexNode> batch = new ArrayList<>();
+        long batchSize = 0;
+        for (IndexNode node : nodes) {
+            if (node.getSize() >= SMALL_FILE_SIZE) {
+                batches.add(Collections.singletonList(node));
+                continue;
+            }
+            batch.add(node);
+            batchSize += node.getSize();
+            if (batchSize >= BATCH_SIZE || batch.size() >= BATCH_FILE_COUNT) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchSize = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private void waitForTask(CompletionService<Void> completionService) throws IOException {
+        try {
+            completionService.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("File update was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Could not update file", cause);
+        }
+    }
+
+    private IndexNode updatePath(Path path) throws IOException {
         List<String> names = new LinkedList<>();
         for (int i = 0; i < path.getNameCount(); i++) {
             names.add(path.getName(i).toString());
         }
-        insertNode(root, names, fileUpdateConsumer);
+        return insertNode(root, names);
     }
 
-    private void insertNode(IndexNode node, List<String> names, Consumer<IndexNode> fileUpdateConsumer) throws IOException {
+    private IndexNode insertNode(IndexNode node, List<String> names) throws IOException {
         if (node.getMode() != FileMode.DIRECTORY) {
             throw new IllegalArgumentException("node must be an directory");
         }
@@ -94,8 +235,7 @@ public class IndexUpdater {
         Path file = base.resolve(node.getRelativePath()).resolve(name);
         IndexNode child = node.findChildByName(name);
         if (names.isEmpty()) {
-            insertLeaf(node, child, name, file, fileUpdateConsumer);
-            return;
+            return insertLeaf(node, child, name, file);
         }
 
         if (child == null) {
@@ -103,10 +243,10 @@ public class IndexUpdater {
             node.addChild(child);
             node.resetHashesToRootNode();
         }
-        insertNode(child, names, fileUpdateConsumer);
+        return insertNode(child, names);
     }
 
-    private void insertLeaf(IndexNode parent, IndexNode existingNode, String name, Path file, Consumer<IndexNode> fileUpdateConsumer) throws IOException {
+    private IndexNode insertLeaf(IndexNode parent, IndexNode existingNode, String name, Path file) throws IOException {
         IndexNode updatedNode = IndexNode.createFromPath(parent, file);
 
         if (canCopyNode(existingNode, updatedNode)) {
@@ -116,8 +256,10 @@ public class IndexUpdater {
             parent.removeChildByName(name);
             parent.addChild(updatedNode);
         }
-        fileUpdateConsumer.accept(updatedNode);
+        // Cache the path before the node is passed to other threads
+        updatedNode.getRelativePath();
         parent.resetHashesToRootNode();
+        return updatedNode;
     }
 
     private boolean canCopyNode(IndexNode existingChild, IndexNode updatedChild) {
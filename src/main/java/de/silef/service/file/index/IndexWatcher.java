@@ -0,0 +1,189 @@
+package de.silef.service.file.index;
+
+import de.silef.service.file.node.FileMode;
+import de.silef.service.file.node.IndexNode;
+import de.silef.service.file.node.IndexNodeCreator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps a file index up to date by file system events of a {@link WatchService}.
+ *
+ * Events are collected until no further event arrives within the delay. Then the changed paths
+ * are rescanned and applied as one {@link IndexChange} batch. A changed directory is rescanned
+ * with its subtree. On overflow events the whole directory of the watch key is rescanned.
+ */
+public class IndexWatcher implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexWatcher.class);
+
+    private static final int MAX_DELAY_FACTOR = 10;
+
+    public interface ChangeListener {
+        void onChange(IndexChange change) throws IOException;
+    }
+
+    private FileIndex index;
+
+    private long delayMillis;
+
+    private WatchService watchService;
+
+    private Map<WatchKey, Path> keyToDir = new HashMap<>();
+
+    private Set<Path> pendingPaths = new HashSet<>();
+
+    public IndexWatcher(FileIndex index, long delayMillis) throws IOException {
+        this.index = index;
+        this.delayMillis = delayMillis;
+        this.watchService = index.getBase().getFileSystem().newWatchService();
+    }
+
+    /**
+     * Watch the index base until the watcher is closed or the thread is interrupted
+     *
+     * @param listener Listener of applied index changes
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void watch(ChangeListener listener) throws IOException, InterruptedException {
+        int dirCount = registerAll(index.getRoot());
+        LOG.info("Watching {} directories of {}", dirCount, index.getBase());
+
+        long firstEventTime = 0;
+        try {
+            while (true) {
+                WatchKey key = pendingPaths.isEmpty() ? watchService.take() : watchService.poll(delayMillis, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+                if (key != null) {
+                    collectEvents(key);
+                    if (firstEventTime == 0) {
+                        firstEventTime = now;
+                    }
+                }
+                if (!pendingPaths.isEmpty() && (key == null || now - firstEventTime > delayMillis * MAX_DELAY_FACTOR)) {
+                    flush(listener);
+                    firstEventTime = pendingPaths.isEmpty() ? 0 : now;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            LOG.debug("Watch service closed");
+        }
+    }
+
+    private void collectEvents(WatchKey key) {
+        Path dir = keyToDir.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null) {
+                continue;
+            }
+            if (event.kind() == OVERFLOW) {
+                LOG.debug("Overflow of file events in {}. Rescan directory", dir);
+                pendingPaths.add(dir);
+            } else {
+                pendingPaths.add(dir.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            keyToDir.remove(key);
+        }
+    }
+
+    void flush(ChangeListener listener) throws IOException {
+        List<Path> paths = getTopMostPaths(pendingPaths);
+        pendingPaths.clear();
+
+        IndexChange change = new IndexChange(index.getBase(), new HashSet<>(), new HashSet<>(), new HashSet<>());
+        for (Path path : paths) {
+            change = change.merge(rescan(path));
+        }
+        if (!change.hasChanges()) {
+            return;
+        }
+        LOG.debug("Apply watched changes: {}", change);
+        index.updateChanges(change, true);
+        listener.onChange(change);
+    }
+
+    private List<Path> getTopMostPaths(Collection<Path> paths) {
+        Path basePath = Paths.get("");
+        if (paths.contains(basePath)) {
+            return Collections.singletonList(basePath);
+        }
+        List<Path> sorted = new ArrayList<>(paths);
+        Collections.sort(sorted);
+
+        List<Path> result = new ArrayList<>();
+        for (Path path : sorted) {
+            if (result.isEmpty() || !path.startsWith(result.get(result.size() - 1))) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    private IndexChange rescan(Path relativePath) throws IOException {
+        IndexNode root = index.getRoot();
+        if (relativePath.toString().isEmpty()) {
+            IndexNode current = IndexNodeCreator.create(index.getBase(), index.getIndexPathFilter(), index.getScanThreads());
+            registerAll(current);
+            return IndexChange.create(index.getBase(), current, root);
+        }
+
+        Path parentPath = relativePath.getParent() != null ? relativePath.getParent() : Paths.get("");
+        IndexNode parent = root.findByRelativePath(parentPath);
+        if (parent == null || parent.getMode() != FileMode.DIRECTORY) {
+            return rescan(parentPath);
+        }
+
+        Path file = index.getBase().resolve(relativePath);
+        IndexNode current = IndexNodeCreator.create(index.getBase(), parent, file, index.getIndexPathFilter(), index.getScanThreads());
+        IndexNode previous = root.findByRelativePath(relativePath);
+        if (current != null && registerAll(current) > 0) {
+            // Entries might be created before the new directories were registered
+            pendingPaths.add(relativePath);
+        }
+        return IndexChange.create(index.getBase(), current, previous);
+    }
+
+    /**
+     * @return Count of newly watched directories
+     */
+    private int registerAll(IndexNode node) throws IOException {
+        if (node.getMode() != FileMode.DIRECTORY) {
+            return 0;
+        }
+        int count = 0;
+        Path relativePath = node.getRelativePath();
+        Path dir = index.getBase().resolve(relativePath);
+        try {
+            // Registering a watched directory again returns its existing key
+            WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            if (keyToDir.put(key, relativePath) == null) {
+                count++;
+            }
+        } catch (NoSuchFileException e) {
+            LOG.debug("Directory was removed before watching: {}", dir);
+            return 0;
+        } catch (IOException e) {
+            LOG.warn("Could not watch directory {}: {}", dir, e.getMessage());
+        }
+        for (IndexNode child : node.getChildren()) {
+            count += registerAll(child);
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,353 @@
+package de.silef.service.file.node;
+
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Node table of parallel primitive arrays. Hashes are packed into a single array and equal
+ * names share one entry of the name pool. A node needs about 70 bytes plus the hash length
+ * and its name instead of several objects per node of an {@link IndexNode} tree.
+ *
+ * A table is copied from a node tree, read from an index file by
+ * {@link IndexNodeReader#readTable(java.nio.file.Path)} or scanned by
+ * {@link IndexNodeCreator#createTable(java.nio.file.Path, java.util.function.Predicate)}. The latter do not
+ * create the node tree.
+ */
+public class ArrayIndexNodeTable implements IndexNodeTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final long EMPTY_SLOT = -1;
+
+    private final HashAlgorithm hashAlgorithm;
+
+    private final int hashLength;
+
+    private int count = 1;
+
+    private int[] parent = new int[INITIAL_CAPACITY];
+    private int[] firstChild = new int[INITIAL_CAPACITY];
+    private int[] childCount = new int[INITIAL_CAPACITY];
+
+    private int[] nameOffset = new int[INITIAL_CAPACITY];
+    private short[] nameLength = new short[INITIAL_CAPACITY];
+
+    /**
+     * File type bits of the modes
+     */
+    private byte[] mode = new byte[INITIAL_CAPACITY];
+    private long[] size = new long[INITIAL_CAPACITY];
+    private long[] creationTime = new long[INITIAL_CAPACITY];
+    private long[] modifiedTime = new long[INITIAL_CAPACITY];
+    private long[] inode = new long[INITIAL_CAPACITY];
+
+    private byte[] hashKind = new byte[INITIAL_CAPACITY];
+    private byte[] hashes;
+
+    private byte[] namePool = new byte[INITIAL_CAPACITY * 8];
+    private int namePoolLength = 0;
+
+    /**
+     * Open addressing table of the name pool entries while the table is built. A slot holds
+     * the pool offset shifted by 16 bits and the name length. It needs 16 bytes per distinct
+     * name instead of a map entry with a string
+     */
+    private long[] nameSlots = newNameSlots(INITIAL_CAPACITY * 2);
+    private int nameSlotCount = 0;
+
+    /**
+     * Create a table with the root node only. The nodes are set and the children are added
+     * by the builders of the package before the table is completed
+     *
+     * @param hashAlgorithm Hash algorithm of the hashes
+     */
+    ArrayIndexNodeTable(HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+        this.hashLength = hashAlgorithm.getLength();
+        this.hashes = new byte[INITIAL_CAPACITY * hashLength];
+        parent[ROOT] = NONE;
+        firstChild[ROOT] = NONE;
+    }
+
+    /**
+     * Copy a node tree into a new table. Missing directory hashes are calculated
+     *
+     * @param root Root node of the tree
+     * @return Table with the root as node 0
+     */
+    public static ArrayIndexNodeTable create(IndexNode root) {
+        ArrayIndexNodeTable table = new ArrayIndexNodeTable(root.getHashAlgorithm());
+        table.setNode(ROOT, root);
+        table.addSubtree(ROOT, root);
+        table.complete();
+        return table;
+    }
+
+    private void addSubtree(int node, IndexNode dir) {
+        List<IndexNode> children = dir.getChildren();
+        int first = addChildren(node, children.size());
+        for (int i = 0; i < children.size(); i++) {
+            setNode(first + i, children.get(i));
+        }
+        for (int i = 0; i < children.size(); i++) {
+            if (children.get(i).getMode().isDirectory()) {
+                addSubtree(first + i, children.get(i));
+            }
+        }
+    }
+
+    /**
+     * Add the children of a node as consecutive nodes. The children must be set in the order
+     * of their names
+     *
+     * @param parentNode Parent node
+     * @param count Count of children
+     * @return Number of the first child
+     */
+    int addChildren(int parentNode, int count) {
+        ensureCapacity(this.count + count);
+        int first = this.count;
+        this.count += count;
+
+        firstChild[parentNode] = count > 0 ? first : NONE;
+        childCount[parentNode] = count;
+        for (int node = first; node < this.count; node++) {
+            parent[node] = parentNode;
+            firstChild[node] = NONE;
+        }
+        return first;
+    }
+
+    void setNode(int node, IndexNode source) {
+        setNode(node, source.getName(), source.getMode(), source.getSize(), source.getCreationTime(),
+                source.getModifiedTime(), source.getInode(), source.getHash(), source.getHashKind());
+    }
+
+    void setNode(int node, String name, FileMode mode, long size, long creationTime, long modifiedTime, long inode, FileHash hash, HashKind hashKind) {
+        setName(node, name);
+        this.mode[node] = (byte) (mode.getValue() >> 12);
+        this.size[node] = size;
+        this.creationTime[node] = creationTime;
+        this.modifiedTime[node] = modifiedTime;
+        this.inode[node] = inode;
+        this.hashKind[node] = (byte) hashKind.getId();
+
+        if (!hash.isZero()) {
+            if (hash.getLength() != hashLength) {
+                throw new IllegalArgumentException("Unexpected hash length of node " + name);
+            }
+            System.arraycopy(hash.getBytes(), 0, hashes, node * hashLength, hashLength);
+        }
+    }
+
+    private void setName(int node, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Name is too long: " + name);
+        }
+        int offset = findName(bytes);
+        if (offset < 0) {
+            if (namePoolLength + bytes.length > namePool.length) {
+                namePool = Arrays.copyOf(namePool, Math.max(namePool.length * 3 / 2, namePoolLength + bytes.length));
+            }
+            System.arraycopy(bytes, 0, namePool, namePoolLength, bytes.length);
+            offset = namePoolLength;
+            namePoolLength += bytes.length;
+            addNameSlot(offset, bytes.length);
+        }
+        nameOffset[node] = offset;
+        nameLength[node] = (short) bytes.length;
+    }
+
+    /**
+     * @param bytes UTF-8 bytes of the name
+     * @return Pool offset of the name or -1
+     */
+    private int findName(byte[] bytes) {
+        int mask = nameSlots.length - 1;
+        for (int slot = hashName(bytes, 0, bytes.length) & mask; nameSlots[slot] != EMPTY_SLOT; slot = (slot + 1) & mask) {
+            int offset = (int) (nameSlots[slot] >>> 16);
+            if ((nameSlots[slot] & 0xFFFF) == bytes.length && isPoolName(offset, bytes)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isPoolName(int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (namePool[offset + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addNameSlot(int offset, int length) {
+        if ((nameSlotCount + 1) * 2 > nameSlots.length) {
+            long[] slots = nameSlots;
+            nameSlots = newNameSlots(slots.length * 2);
+            for (long slot : slots) {
+                if (slot != EMPTY_SLOT) {
+                    putNameSlot(slot);
+                }
+            }
+        }
+        putNameSlot(((long) offset << 16) | length);
+        nameSlotCount++;
+    }
+
+    private void putNameSlot(long value) {
+        int mask = nameSlots.length - 1;
+        int slot = hashName(namePool, (int) (value >>> 16), (int) (value & 0xFFFF)) & mask;
+        while (nameSlots[slot] != EMPTY_SLOT) {
+            slot = (slot + 1) & mask;
+        }
+        nameSlots[slot] = value;
+    }
+
+    private static long[] newNameSlots(int size) {
+        long[] slots = new long[size];
+        Arrays.fill(slots, EMPTY_SLOT);
+        return slots;
+    }
+
+    private static int hashName(byte[] bytes, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= parent.length) {
+            return;
+        }
+        resize(Math.max(parent.length * 3 / 2, capacity));
+    }
+
+    /**
+     * Release the build state and trim the arrays to the node count
+     */
+    void complete() {
+        resize(count);
+        namePool = Arrays.copyOf(namePool, namePoolLength);
+        nameSlots = null;
+    }
+
+    private void resize(int capacity) {
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        childCount = Arrays.copyOf(childCount, capacity);
+        nameOffset = Arrays.copyOf(nameOffset, capacity);
+        nameLength = Arrays.copyOf(nameLength, capacity);
+        mode = Arrays.copyOf(mode, capacity);
+        size = Arrays.copyOf(size, capacity);
+        creationTime = Arrays.copyOf(creationTime, capacity);
+        modifiedTime = Arrays.copyOf(modifiedTime, capacity);
+        inode = Arrays.copyOf(inode, capacity);
+        hashKind = Arrays.copyOf(hashKind, capacity);
+        hashes = Arrays.copyOf(hashes, capacity * hashLength);
+    }
+
+    /**
+     * Create a node tree of the table. Directories load their children from the table on first
+     * access. Digest states and chunks are not restored
+     *
+     * @return Root node
+     */
+    public IndexNode toIndexNode() {
+        return IndexNode.createRootFromTable(this);
+    }
+
+    /**
+     * @return Size of the name pool in bytes
+     */
+    public int getNamePoolSize() {
+        return namePoolLength;
+    }
+
+    @Override
+    public int getNodeCount() {
+        return count;
+    }
+
+    @Override
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    @Override
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    @Override
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    @Override
+    public int getChildCount(int node) {
+        return childCount[node];
+    }
+
+    @Override
+    public String getName(int node) {
+        return new String(namePool, nameOffset[node], nameLength[node] & 0xFFFF, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public FileMode getMode(int node) {
+        return FileMode.create((mode[node] & 0xFF) << 12);
+    }
+
+    @Override
+    public long getSize(int node) {
+        return size[node];
+    }
+
+    @Override
+    public long getCreationTime(int node) {
+        return creationTime[node];
+    }
+
+    @Override
+    public long getModifiedTime(int node) {
+        return modifiedTime[node];
+    }
+
+    @Override
+    public long getInode(int node) {
+        return inode[node];
+    }
+
+    @Override
+    public FileHash getHash(int node) {
+        int offset = node * hashLength;
+        for (int i = 0; i < hashLength; i++) {
+            if (hashes[offset + i] != 0) {
+                return new FileHash(Arrays.copyOfRange(hashes, offset, offset + hashLength));
+            }
+        }
+        return FileHash.ZERO;
+    }
+
+    @Override
+    public HashKind getHashKind(int node) {
+        try {
+            return HashKind.create(hashKind[node] & 0xFF);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package de.silef.service.file.node;
+
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read only view of a node of an {@link IndexNodeTable}. Views are created on demand and hold
+ * only the table and the node number. A mutable tree of a table is created by
+ * {@link IndexNode#createRootFromTable(IndexNodeTable)}.
+ */
+public class CompactIndexNode implements IndexTreeNode<CompactIndexNode> {
+
+    private final IndexNodeTable table;
+
+    private final int node;
+
+    private CompactIndexNode(IndexNodeTable table, int node) {
+        this.table = table;
+        this.node = node;
+    }
+
+    public static CompactIndexNode createRoot(IndexNodeTable table) {
+        assert table.getNodeCount() > 0 : "Table must not be empty";
+
+        return new CompactIndexNode(table, IndexNodeTable.ROOT);
+    }
+
+    public IndexNodeTable getTable() {
+        return table;
+    }
+
+    /**
+     * @return Node number within the table
+     */
+    public int getNode() {
+        return node;
+    }
+
+    public CompactIndexNode getParent() {
+        int parent = table.getParent(node);
+        return parent == IndexNodeTable.NONE ? null : new CompactIndexNode(table, parent);
+    }
+
+    public String getName() {
+        return table.getName(node);
+    }
+
+    public FileMode getMode() {
+        return table.getMode(node);
+    }
+
+    public long getSize() {
+        return table.getSize(node);
+    }
+
+    public long getCreationTime() {
+        return table.getCreationTime(node);
+    }
+
+    public long getModifiedTime() {
+        return table.getModifiedTime(node);
+    }
+
+    public long getInode() {
+        return table.getInode(node);
+    }
+
+    public FileHash getHash() {
+        return table.getHash(node);
+    }
+
+    public HashKind getHashKind() {
+        return table.getHashKind(node);
+    }
+
+    public HashAlgorithm getHashAlgorithm() {
+        return table.getHashAlgorithm();
+    }
+
+    /**
+     * @return Lazy list of the children sorted by name
+     */
+    public List<CompactIndexNode> getChildren() {
+        int first = table.getFirstChild(node);
+        int count = table.getChildCount(node);
+        return new AbstractList<CompactIndexNode>() {
+            @Override
+            public CompactIndexNode get(int index) {
+                if (index < 0 || index >= count) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+                }
+                return new CompactIndexNode(table, first + index);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    public CompactIndexNode findChildByName(String name) {
+        // Children are consecutive nodes sorted by name
+        int low = table.getFirstChild(node);
+        int high = low + table.getChildCount(node) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = table.getName(mid).compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return new CompactIndexNode(table, mid);
+            }
+        }
+        return null;
+    }
+
+    public CompactIndexNode findByRelativePath(Path relativePath) {
+        CompactIndexNode current = this;
+        for (Path name : relativePath) {
+            String childName = name.toString();
+            if (childName.isEmpty()) {
+                continue;
+            }
+            current = current.findChildByName(childName);
+            if (current == null) {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    public Path getRelativePath() {
+        int parent = table.getParent(node);
+        if (parent == IndexNodeTable.NONE) {
+            return Paths.get("");
+        }
+        return new CompactIndexNode(table, parent).getRelativePath().resolve(getName());
+    }
+
+    public Stream<CompactIndexNode> stream() {
+        if (!getMode().isDirectory()) {
+            return Stream.empty();
+        }
+        return StreamSupport.stream(new IndexNodeSpliterator<>(this), false);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        CompactIndexNode that = (CompactIndexNode) o;
+
+        return node == that.node && table == that.table;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * System.identityHashCode(table) + node;
+    }
+}
@@ -0,0 +1,175 @@
+package de.silef.service.file.node;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static de.silef.service.file.node.IndexNode.MAGIC_HEADER;
+import static de.silef.service.file.node.IndexNode.OFFSET_TABLE_VERSION;
+
+/**
+ * Offset table of the compressed blocks of an index file since format version 4. Each block
+ * is an independent zlib stream. Block 0 contains the root node, every other block the
+ * children of a directory. The table maps the block number to the position and the
+ * compressed length of the block. Directories refer to the block of their children by its
+ * number. Tables before format version 6 also store the unused relative directory path of
+ * each block.
+ *
+ * The table is stored as zlib stream after the last block. The file ends with a footer of
+ * the table offset, the compressed table length and the magic header.
+ */
+class IndexBlockTable {
+
+    static final int FOOTER_SIZE = 8 + 4 + 4;
+
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<Integer> lengths = new ArrayList<>();
+
+    private FileChannel channel;
+
+    int add(long offset, int length) {
+        offsets.add(offset);
+        lengths.add(length);
+        return offsets.size() - 1;
+    }
+
+    int size() {
+        return offsets.size();
+    }
+
+    /**
+     * Write the table and the footer
+     *
+     * @param output Index output
+     * @param tableOffset Position of the table in the index file
+     * @throws IOException
+     */
+    void write(DataOutputStream output, long tableOffset) throws IOException {
+        byte[] table = compress(this::writeEntries);
+        output.write(table);
+        output.writeLong(tableOffset);
+        output.writeInt(table.length);
+        output.writeInt(MAGIC_HEADER);
+    }
+
+    private void writeEntries(DataOutputStream output) throws IOException {
+        output.writeInt(offsets.size());
+        for (int i = 0; i < offsets.size(); i++) {
+            output.writeLong(offsets.get(i));
+            output.writeInt(lengths.get(i));
+        }
+    }
+
+    /**
+     * @param channel Index file
+     * @param version Format version of the index
+     * @return Block table
+     * @throws IOException
+     */
+    static IndexBlockTable read(FileChannel channel, int version) throws IOException {
+        long size = channel.size();
+        if (size < FOOTER_SIZE) {
+            throw new EOFException("Missing index block table");
+        }
+        ByteBuffer footer = readFully(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+        long tableOffset = footer.getLong();
+        int tableLength = footer.getInt();
+        if (footer.getInt() != MAGIC_HEADER || tableOffset < 0 || tableLength < 0 || tableOffset + tableLength > size - FOOTER_SIZE) {
+            throw new IOException("Invalid index block table");
+        }
+
+        IndexBlockTable table = new IndexBlockTable();
+        table.channel = channel;
+        try (DataInputStream input = inflate(readFully(channel, tableOffset, tableLength).array())) {
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                if (version < OFFSET_TABLE_VERSION) {
+                    skipPath(input);
+                }
+                long offset = input.readLong();
+                int length = input.readInt();
+                if (offset < 0 || length < 0 || offset + length > tableOffset) {
+                    throw new IOException("Invalid index block " + i);
+                }
+                table.add(offset, length);
+            }
+        }
+        return table;
+    }
+
+    private static void skipPath(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || input.skipBytes(length) != length) {
+            throw new IOException("Invalid index block path");
+        }
+    }
+
+    /**
+     * @param block Block number
+     * @return Input of the uncompressed block content
+     * @throws IOException
+     */
+    DataInputStream openBlock(int block) throws IOException {
+        if (block < 0 || block >= offsets.size()) {
+            throw new IOException("Unknown index block " + block);
+        }
+        return inflate(readFully(channel, offsets.get(block), lengths.get(block)).array());
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    static byte[] compress(BlockContent content) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(buffer)))) {
+            content.write(output);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @param content Block content
+     * @return Uncompressed bytes of the content
+     * @throws IOException
+     */
+    static byte[] serialize(BlockContent content) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(buffer)) {
+            content.write(output);
+        }
+        return buffer.toByteArray();
+    }
+
+    static byte[] deflate(byte[] bytes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        try (DeflaterOutputStream output = new DeflaterOutputStream(buffer)) {
+            output.write(bytes);
+        }
+        return buffer.toByteArray();
+    }
+
+    static DataInputStream inflate(byte[] bytes) {
+        return new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes))));
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of index file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    interface BlockContent {
+        void write(DataOutputStream output) throws IOException;
+    }
+}
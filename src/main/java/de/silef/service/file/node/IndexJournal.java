@@ -0,0 +1,269 @@
+package de.silef.service.file.node;
+
+import de.silef.service.file.hash.HashAlgorithm;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static de.silef.service.file.node.IndexNode.FORMAT_VERSION;
+
+/**
+ * Append only journal of index changes next to an index file. Each update appends a batch
+ * of records which set a node or remove a node by its path. The records contain the node
+ * state after the update, so replaying a batch twice has the same result as replaying it
+ * once. This allows to write a compacted index before the journal is deleted.
+ *
+ * The journal starts with the magic, the index format version of the records, the hash
+ * algorithm id and hash length. Each batch has the 4 byte compressed length, the 4 byte
+ * CRC32 of the compressed bytes and the zlib compressed records. An incomplete batch at
+ * the end of the journal is the result of an interrupted append and is dropped on replay.
+ */
+public class IndexJournal {
+
+    static int MAGIC_HEADER = 0x23100720;
+
+    private static final int HEADER_SIZE = 4 + 2 + 1 + 1;
+
+    private static final int BATCH_HEADER_SIZE = 4 + 4;
+
+    private static final int RECORD_PUT = 1;
+
+    private static final int RECORD_REMOVE = 2;
+
+    private final Path file;
+
+    public IndexJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @param indexFile Index file
+     * @return Journal next to the index file
+     */
+    public static IndexJournal forIndex(Path indexFile) {
+        return new IndexJournal(indexFile.resolveSibling(indexFile.getFileName() + ".journal"));
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return Size of the journal in bytes or 0 if it does not exist
+     * @throws IOException
+     */
+    public long size() throws IOException {
+        return Files.exists(file) ? Files.size(file) : 0;
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Append the current state of updated paths of the tree. New parent directories of
+     * updated paths are added before their children
+     *
+     * @param root Root of the updated tree
+     * @param updatedPaths Relative paths of created or modified nodes
+     * @param removedPaths Relative paths of removed nodes
+     * @throws IOException
+     */
+    public void append(IndexNode root, Collection<Path> updatedPaths, Collection<Path> removedPaths) throws IOException {
+        HashAlgorithm hashAlgorithm = root.getHashAlgorithm();
+        byte[] zeroHash = new byte[hashAlgorithm.getLength()];
+        List<IndexNode> nodes = getUpdatedNodes(root, updatedPaths);
+        List<Path> removed = new ArrayList<>(removedPaths);
+        removed.sort(Comparator.naturalOrder());
+
+        IndexNodeWriter writer = new IndexNodeWriter();
+        byte[] batch = IndexBlockTable.compress(output -> {
+            output.writeInt(nodes.size() + removed.size());
+            for (IndexNode node : nodes) {
+                output.writeByte(RECORD_PUT);
+                output.writeUTF(IndexNodeWriter.toBlockPath(node.getParent()));
+                // The replayed tree might differ, so records do not refer to other nodes
+                writer.writeRecord(node, null, null, output, zeroHash);
+            }
+            for (Path path : removed) {
+                output.writeByte(RECORD_REMOVE);
+                Path parent = path.getParent();
+                output.writeUTF(parent != null ? IndexNodeWriter.toBlockPath(parent) : "");
+                output.writeUTF(path.getFileName().toString());
+            }
+        });
+        CRC32 crc = new CRC32();
+        crc.update(batch);
+
+        boolean create = !Files.exists(file);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            if (create) {
+                output.writeInt(MAGIC_HEADER);
+                output.writeShort(FORMAT_VERSION);
+                output.writeByte(hashAlgorithm.getId());
+                output.writeByte(hashAlgorithm.getLength());
+            }
+            output.writeInt(batch.length);
+            output.writeInt((int) crc.getValue());
+            output.write(batch);
+        }
+    }
+
+    private List<IndexNode> getUpdatedNodes(IndexNode root, Collection<Path> updatedPaths) {
+        List<Path> paths = new ArrayList<>(updatedPaths);
+        paths.sort(Comparator.naturalOrder());
+
+        Set<IndexNode> written = new HashSet<>();
+        List<IndexNode> nodes = new ArrayList<>();
+        for (Path path : paths) {
+            IndexNode node = root.findByRelativePath(path);
+            if (node == null || node == root) {
+                continue;
+            }
+            LinkedList<IndexNode> chain = new LinkedList<>();
+            for (IndexNode current = node; current != root; current = current.getParent()) {
+                chain.addFirst(current);
+            }
+            for (IndexNode current : chain) {
+                if (written.add(current)) {
+                    nodes.add(current);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Apply all complete batches of the journal to the tree. An incomplete batch at the end
+     * is truncated
+     *
+     * @param root Root of the index
+     * @return Count of applied records
+     * @throws IOException
+     */
+    public int replay(IndexNode root) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        } else if (Files.size(file) < HEADER_SIZE) {
+            // The first append was interrupted
+            delete();
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            IndexNodeReader.IndexHeader header = readHeader(channel, root);
+            IndexNodeReader reader = new IndexNodeReader();
+
+            int records = 0;
+            long position = HEADER_SIZE;
+            while (position + BATCH_HEADER_SIZE <= size) {
+                ByteBuffer batchHeader = IndexBlockTable.readFully(channel, position, BATCH_HEADER_SIZE);
+                int length = batchHeader.getInt();
+                int check = batchHeader.getInt();
+                if (length < 0 || position + BATCH_HEADER_SIZE + length > size) {
+                    break;
+                }
+                byte[] batch = IndexBlockTable.readFully(channel, position + BATCH_HEADER_SIZE, length).array();
+                CRC32 crc = new CRC32();
+                crc.update(batch);
+                if ((int) crc.getValue() != check) {
+                    break;
+                }
+                records += replayBatch(root, reader, header, batch);
+                position += BATCH_HEADER_SIZE + length;
+            }
+            if (position < size) {
+                channel.truncate(position);
+            }
+            return records;
+        }
+    }
+
+    private IndexNodeReader.IndexHeader readHeader(FileChannel channel, IndexNode root) throws IOException {
+        ByteBuffer header = IndexBlockTable.readFully(channel, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC_HEADER) {
+            throw new IOException("Unexpected journal header of " + file);
+        }
+        int version = header.getShort() & 0xFFFF;
+        if (version > FORMAT_VERSION) {
+            throw new IOException("Unsupported journal format version: " + version);
+        }
+        HashAlgorithm hashAlgorithm = HashAlgorithm.create(header.get() & 0xFF);
+        int hashLength = header.get() & 0xFF;
+        if (hashAlgorithm != root.getHashAlgorithm() || hashLength != hashAlgorithm.getLength()) {
+            throw new IOException("Journal hash algorithm " + hashAlgorithm.getName() + " differs from index");
+        }
+        return new IndexNodeReader.IndexHeader(version, hashAlgorithm);
+    }
+
+    private int replayBatch(IndexNode root, IndexNodeReader reader, IndexNodeReader.IndexHeader header, byte[] batch) throws IOException {
+        try (DataInputStream input = IndexBlockTable.inflate(batch)) {
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                int type = input.readUnsignedByte();
+                IndexNode parent = findDirectory(root, input.readUTF());
+                if (type == RECORD_PUT) {
+                    putNode(parent, reader.readRecord(parent, null, null, input, header));
+                } else if (type == RECORD_REMOVE) {
+                    String name = input.readUTF();
+                    if (parent != null && parent.removeChildByName(name) != null) {
+                        parent.resetHashesToRootNode();
+                    }
+                } else {
+                    throw new IOException("Unknown journal record type: " + type);
+                }
+            }
+            return count;
+        }
+    }
+
+    private IndexNode findDirectory(IndexNode root, String path) {
+        IndexNode node = root;
+        if (path.isEmpty()) {
+            return node;
+        }
+        for (String name : path.split("/")) {
+            node = node.findChildByName(name);
+            if (node == null || !node.getMode().isDirectory()) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private void putNode(IndexNode parent, IndexNode node) throws IOException {
+        if (parent == null) {
+            throw new IOException("Missing parent directory of journal record " + node.getName());
+        }
+        IndexNode existing = parent.findChildByName(node.getName());
+        if (node.getMode().isDirectory()) {
+            if (existing != null && existing.getMode().isDirectory()) {
+                // Existing directories keep their children but take the metadata of the record
+                existing.copyFrom(node);
+                existing.resetHashesToRootNode();
+                return;
+            }
+            node.setChildren(new ArrayList<>());
+        }
+        parent.addChild(node);
+        if (node.getMode().isDirectory()) {
+            // The hash and rollup of the record include the previous children
+            node.resetHashesToRootNode();
+        } else {
+            parent.resetHashesToRootNode();
+        }
+    }
+}
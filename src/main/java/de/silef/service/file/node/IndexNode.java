@@ -1,33 +1,96 @@
 package de.silef.service.file.node;
 
+import de.silef.service.file.hash.DigestState;
+import de.silef.service.file.hash.FileChunk;
 import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
 import de.silef.service.file.util.HashUtil;
-import de.silef.service.file.tree.Visitor;
+import de.silef.service.file.tree.PathInfo;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.io.UTFDataFormatException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by sebastian on 17.09.16.
  */
-public class IndexNode implements Serializable {
-
-    static int MAGIC_HEADER = 0x23100702;
+public class IndexNode implements IndexTreeNode<IndexNode>, Serializable {
+
+    /**
+     * Header of indices without format version. Their hashes are SHA-1
+     */
+    static int MAGIC_HEADER_V1 = 0x23100702;
+
+    /**
+     * Header followed by the format version, hash algorithm id and hash length
+     */
+    static int MAGIC_HEADER = 0x23100703;
+
+    static int FORMAT_VERSION = 6;
+
+    /**
+     * Nodes of format version 3 and above have tagged extensions after the name
+     */
+    static int EXTENSION_VERSION = 3;
+
+    /**
+     * Index files of format version 4 and above have an uncompressed header followed by
+     * compressed blocks and an offset table of the blocks
+     */
+    static int BLOCK_VERSION = 4;
+
+    /**
+     * Nodes of format version 5 and above have a mode byte, variable length numbers, times and
+     * inode relative to the previous sibling or parent and names front coded against the
+     * previous sibling
+     */
+    static int COMPACT_VERSION = 5;
+
+    /**
+     * Block tables of format version 6 and above have the offset and length of the blocks
+     * without directory paths
+     */
+    static int OFFSET_TABLE_VERSION = 6;
+
+    /**
+     * Child count of a directory whose children are stored in the block with the following number
+     */
+    static int EXTERNAL_CHILDREN = -1;
+
+    static int EXTENSION_END = 0;
+    static int EXTENSION_HASH_KIND = 1;
+    static int EXTENSION_DIGEST_STATE = 2;
+    static int EXTENSION_CHUNKS = 3;
+    static int EXTENSION_ROLLUP = 4;
+    static int EXTENSION_SCAN_TIME = 5;
+
+    private static final IndexNode[] NO_CHILDREN = new IndexNode[0];
+
+    private static final ThreadLocal<byte[]> UTF_BUFFER = ThreadLocal.withInitial(() -> new byte[256]);
 
     private IndexNode parent = null;
-    private List<IndexNode> children = new ArrayList<>();
-    private Map<String, IndexNode> nameToChild = new HashMap<>();
+    /**
+     * Children sorted by name. Only the first childCount entries are used
+     */
+    private IndexNode[] children = NO_CHILDREN;
+    private int childCount = 0;
+
+    /**
+     * Loader of children which are not read from the index yet or null
+     */
+    private transient volatile ChildrenLoader childrenLoader = null;
 
     private String name;
 
@@ -42,8 +105,30 @@ public class IndexNode implements Serializable {
 
     private long inode = 0;
 
+    private long device = 0;
+
     private FileHash hash = FileHash.ZERO;
 
+    private HashKind hashKind = HashKind.CONTENT;
+
+    private DigestState digestState = null;
+
+    private List<FileChunk> chunks = null;
+
+    private HashAlgorithm hashAlgorithm = null;
+
+    /**
+     * Subtree aggregates of a directory. A negative count marks missing aggregates
+     */
+    private long totalFileCount = -1;
+    private long totalFileSize = 0;
+    private long newestModifiedTime = 0;
+
+    /**
+     * Start of the scan of the directory metadata of a root node in milliseconds or 0
+     */
+    private long scanTime = 0;
+
     private IndexNode() {
         super();
     }
@@ -63,6 +148,41 @@ public class IndexNode implements Serializable {
         return node;
     }
 
+    /**
+     * Create the root of a node table. Directories load their children from the table on first
+     * access, so untouched subtrees stay in the table. Digest states and chunks are not part of
+     * a table
+     *
+     * @param table Node table. It must not be modified while the tree is used
+     * @return Root node
+     */
+    public static IndexNode createRootFromTable(IndexNodeTable table) {
+        IndexNode root = createFromTable(null, table, IndexNodeTable.ROOT);
+        root.setHashAlgorithm(table.getHashAlgorithm());
+        return root;
+    }
+
+    private static IndexNode createFromTable(IndexNode parent, IndexNodeTable table, int number) {
+        FileMode mode = table.getMode(number);
+        FileHash hash = table.getHash(number);
+        // Directories without stored hash, e.g. of a scanned table, are calculated
+        IndexNode node = createFromIndex(parent, mode, table.getSize(number), table.getCreationTime(number),
+                table.getModifiedTime(number), table.getInode(number), mode.isDirectory() && hash.isZero() ? null : hash,
+                table.getName(number));
+        node.hashKind = table.getHashKind(number);
+        if (mode.isDirectory()) {
+            node.setChildrenLoader(dir -> {
+                int first = table.getFirstChild(number);
+                List<IndexNode> children = new ArrayList<>(table.getChildCount(number));
+                for (int i = 0; i < table.getChildCount(number); i++) {
+                    children.add(createFromTable(dir, table, first + i));
+                }
+                return children;
+            });
+        }
+        return node;
+    }
+
     public static IndexNode createRootFromPath(Path file) throws IOException {
         assert Files.isDirectory(file) : "Root must be a directory";
 
@@ -80,59 +200,42 @@ public class IndexNode implements Serializable {
 
     private static IndexNode createFromPath(Path file, String name) throws IOException {
         assert file != null : "Path must not be null";
-        assert name != null : "Name must not be null";
 
-        IndexNode node = new IndexNode();
-
-        node.size = Files.size(file);
+        return createFromPathInfo(PathInfo.read(file), name);
+    }
 
-        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    public static IndexNode createRootFromPathInfo(PathInfo info) {
+        assert info.isDirectory() : "Root must be a directory";
 
-        node.mode = getMode(attributes);
-        node.creationTime = attributes.creationTime().toMillis();
-        node.modifiedTime = attributes.lastModifiedTime().toMillis();
+        return createFromPathInfo(info, "");
+    }
 
-        node.inode = readInode(attributes);
-        node.hash = FileHash.ZERO;
+    public static IndexNode createFromPathInfo(IndexNode parent, PathInfo info) {
+        assert parent != null : "Parent must not be null";
 
-        node.name = name;
+        IndexNode node = createFromPathInfo(info, info.getPath().getFileName().toString());
+        node.parent = parent;
 
         return node;
     }
 
-    private static FileMode getMode(BasicFileAttributes attributes) {
-        if (attributes.isRegularFile()) {
-            return FileMode.FILE;
-        } else if (attributes.isDirectory()) {
-            return FileMode.DIRECTORY;
-        } else if (attributes.isSymbolicLink()) {
-            return FileMode.LINK;
-        } else {
-            return FileMode.OTHER;
-        }
-    }
+    private static IndexNode createFromPathInfo(PathInfo info, String name) {
+        assert name != null : "Name must not be null";
 
-    private static long readInode(BasicFileAttributes attributes) {
-        Object key = attributes.fileKey();
-        if (key != null) {
-            String value = key.toString();
-            int start = value.indexOf("ino=");
-            if (start >= 0) {
-                start += 4;
-                int end = start;
-                while (end < value.length()) {
-                    char c = value.charAt(end);
-                    if (c < '0' || c > '9') {
-                        break;
-                    }
-                    end++;
-                }
-                if (start < end) {
-                    return Long.parseLong(value.substring(start, end));
-                }
-            }
-        }
-        return 0;
+        IndexNode node = new IndexNode();
+
+        node.mode = FileMode.create(info.getTypeMode());
+        node.size = info.getSize();
+        node.creationTime = info.getCreationTime();
+        node.modifiedTime = info.getModifiedTime();
+
+        node.inode = info.getInode();
+        node.device = info.getDevice();
+        node.hash = FileHash.ZERO;
+
+        node.name = name;
+
+        return node;
     }
 
     public IndexNode getParent() {
@@ -163,10 +266,93 @@ public class IndexNode implements Serializable {
         return inode;
     }
 
+    /**
+     * @return Device id of the file system or 0 if unknown. The device is not stored in the index
+     */
+    public long getDevice() {
+        return device;
+    }
+
     public void setHash(FileHash hash) {
+        setHash(hash, HashKind.CONTENT);
+    }
+
+    public void setHash(FileHash hash, HashKind hashKind) {
         assert hash != null : "Hash must not be null";
+        assert hashKind != null : "Hash kind must not be null";
 
         this.hash = hash;
+        this.hashKind = hashKind;
+    }
+
+    /**
+     * @return Kind of the content hash. Directory hashes are always of kind content
+     */
+    public HashKind getHashKind() {
+        return hashKind;
+    }
+
+    /**
+     * @return Hash algorithm of the root node. Default is SHA-1
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        IndexNode node = this;
+        while (node.parent != null) {
+            node = node.parent;
+        }
+        return node.hashAlgorithm != null ? node.hashAlgorithm : HashAlgorithm.SHA1;
+    }
+
+    /**
+     * Set the hash algorithm of the tree. It must be set before any hash is calculated
+     *
+     * @param hashAlgorithm Hash algorithm of content and directory hashes
+     */
+    public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+        assert parent == null : "Hash algorithm must be set on the root node";
+
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    /**
+     * @return Digest state to resume hashing of appended content or null
+     */
+    public DigestState getDigestState() {
+        return digestState;
+    }
+
+    public void setDigestState(DigestState digestState) {
+        this.digestState = digestState;
+    }
+
+    /**
+     * @return Content defined chunks of a hash of kind chunks or null
+     */
+    public List<FileChunk> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<FileChunk> chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Copy the content hash with its kind, digest state and chunks
+     *
+     * @param other Node with the same content
+     */
+    public void copyHashFrom(IndexNode other) {
+        hash = other.getHash();
+        hashKind = other.getHashKind();
+        digestState = other.getDigestState();
+        chunks = other.getChunks();
+    }
+
+    /**
+     * @return false if the directory hash must be calculated
+     */
+    boolean hasHash() {
+        return hash != null;
     }
 
     public FileHash getHash() {
@@ -177,22 +363,130 @@ public class IndexNode implements Serializable {
     }
 
     private FileHash calculateHash() {
-        try (ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-             DataOutputStream dataOutput = new DataOutputStream(buffer);) {
-
-            sortChildren();
-            for (IndexNode child : children) {
-                dataOutput.write(child.getHash().getBytes());
-                dataOutput.write(child.getMode().getValue());
-                dataOutput.writeUTF(child.getName());
+        loadChildren();
+        // Dirty children are calculated first since the digest of the current thread is shared
+        for (int i = 0; i < childCount; i++) {
+            children[i].getHash();
+        }
+        try {
+            MessageDigest digest = HashUtil.getDigest(getHashAlgorithm());
+            for (int i = 0; i < childCount; i++) {
+                IndexNode child = children[i];
+                child.getHash().update(digest);
+                digest.update((byte) child.getMode().getValue());
+                updateUTF(digest, child.getName());
             }
-            byte[] hash = HashUtil.getHash(buffer.toByteArray());
-            return new FileHash(hash);
+            return new FileHash(digest.digest());
         } catch (IOException e) {
             throw new RuntimeException("Could not create node hash", e);
         }
     }
 
+    /**
+     * Update the digest with the name like {@link java.io.DataOutput#writeUTF(String)}
+     */
+    private static void updateUTF(MessageDigest digest, String name) throws UTFDataFormatException {
+        int length = name.length();
+        byte[] buffer = UTF_BUFFER.get();
+        if (buffer.length < 2 + 3 * length) {
+            buffer = new byte[2 + 3 * length];
+            UTF_BUFFER.set(buffer);
+        }
+        int count = 2;
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer[count++] = (byte) c;
+            } else if (c > 0x07FF) {
+                buffer[count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buffer[count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        int utfLength = count - 2;
+        if (utfLength > 0xFFFF) {
+            throw new UTFDataFormatException("Encoded name is too long: " + utfLength + " bytes");
+        }
+        buffer[0] = (byte) (utfLength >>> 8);
+        buffer[1] = (byte) utfLength;
+        digest.update(buffer, 0, count);
+    }
+
+    /**
+     * @return Count of nodes of the subtree including this node like the count of {@link #stream()}.
+     * A file counts as one node
+     */
+    public long getTotalFileCount() {
+        if (!mode.isDirectory()) {
+            return 1;
+        }
+        if (totalFileCount < 0) {
+            calculateRollup();
+        }
+        return totalFileCount;
+    }
+
+    /**
+     * @return Sum of the sizes of all nodes of the subtree including this node
+     */
+    public long getTotalFileSize() {
+        if (!mode.isDirectory()) {
+            return size;
+        }
+        if (totalFileCount < 0) {
+            calculateRollup();
+        }
+        return totalFileSize;
+    }
+
+    /**
+     * @return Newest modification time of all nodes of the subtree including this node
+     */
+    public long getNewestModifiedTime() {
+        if (!mode.isDirectory()) {
+            return modifiedTime;
+        }
+        if (totalFileCount < 0) {
+            calculateRollup();
+        }
+        return newestModifiedTime;
+    }
+
+    /**
+     * @return Start of the scan which read the directory metadata of the tree in milliseconds
+     * or 0 if unknown. Only root nodes have a scan time
+     */
+    public long getScanTime() {
+        return scanTime;
+    }
+
+    public void setScanTime(long scanTime) {
+        this.scanTime = scanTime;
+    }
+
+    void setRollup(long totalFileCount, long totalFileSize, long newestModifiedTime) {
+        this.totalFileCount = totalFileCount;
+        this.totalFileSize = totalFileSize;
+        this.newestModifiedTime = newestModifiedTime;
+    }
+
+    private void calculateRollup() {
+        loadChildren();
+        long count = 1;
+        long totalSize = size;
+        long newest = modifiedTime;
+        for (int i = 0; i < childCount; i++) {
+            IndexNode child = children[i];
+            count += child.getTotalFileCount();
+            totalSize += child.getTotalFileSize();
+            newest = Math.max(newest, child.getNewestModifiedTime());
+        }
+        setRollup(count, totalSize, newest);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -221,36 +515,127 @@ public class IndexNode implements Serializable {
         return result;
     }
 
+    /**
+     * @return Read only view of the children sorted by name. The view must not be used after
+     * the children are modified
+     */
     public List<IndexNode> getChildren() {
-        return new ArrayList<>(children);
+        loadChildren();
+        return Collections.unmodifiableList(Arrays.asList(children).subList(0, childCount));
     }
 
     public void addChild(IndexNode node) {
-        IndexNode oldNode = nameToChild.put(node.getName(), node);
-        children.remove(oldNode);
-        children.add(node);
+        loadChildren();
+        int index = indexOfChild(node.getName());
+        if (index >= 0) {
+            children[index] = node;
+            return;
+        }
+        index = -index - 1;
+        if (childCount == children.length) {
+            children = Arrays.copyOf(children, Math.max(4, childCount + (childCount >> 1)));
+        }
+        System.arraycopy(children, index, children, index + 1, childCount - index);
+        children[index] = node;
+        childCount++;
     }
 
     void setChildren(List<IndexNode> children) {
-        this.children = new ArrayList<>(children);
-        nameToChild = new HashMap<>();
-        for (IndexNode node : children) {
-            nameToChild.put(node.getName(), node);
+        IndexNode[] sorted = children.toArray(new IndexNode[children.size()]);
+        Arrays.sort(sorted, (a, b) -> a.getName().compareTo(b.getName()));
+        this.children = sorted.length == 0 ? NO_CHILDREN : sorted;
+        childCount = sorted.length;
+        childrenLoader = null;
+    }
+
+    /**
+     * @param childrenLoader Loader of the children on first access
+     */
+    void setChildrenLoader(ChildrenLoader childrenLoader) {
+        this.childrenLoader = childrenLoader;
+    }
+
+    /**
+     * @return false if the children are not loaded yet
+     */
+    boolean isChildrenLoaded() {
+        return childrenLoader == null;
+    }
+
+    private void loadChildren() {
+        if (childrenLoader == null) {
+            return;
+        }
+        synchronized (this) {
+            ChildrenLoader loader = childrenLoader;
+            if (loader == null) {
+                return;
+            }
+            try {
+                setChildren(loader.load(this));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not load children of " + getRelativePath(), e);
+            }
         }
     }
 
     public IndexNode removeChildByName(String name) {
-        IndexNode node = findChildByName(name);
-        children.remove(node);
+        loadChildren();
+        int index = indexOfChild(name);
+        if (index < 0) {
+            return null;
+        }
+        IndexNode node = children[index];
+        System.arraycopy(children, index + 1, children, index, childCount - index - 1);
+        children[--childCount] = null;
         return node;
     }
 
     public IndexNode findChildByName(String name) {
-        return nameToChild.get(name);
+        loadChildren();
+        int index = indexOfChild(name);
+        return index >= 0 ? children[index] : null;
+    }
+
+    /**
+     * @return Index of the child or (-(insertion point) - 1) like {@link Arrays#binarySearch(Object[], Object)}
+     */
+    private int indexOfChild(String name) {
+        int low = 0;
+        int high = childCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = children[mid].getName().compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
     }
 
-    private void sortChildren() {
-        children.sort((a, b) -> a.getName().compareTo(b.getName()));
+    /**
+     * Find a node of the subtree
+     *
+     * @param relativePath Path relative to this node
+     * @return Node of the path or null if not found
+     */
+    public IndexNode findByRelativePath(Path relativePath) {
+        IndexNode node = this;
+        for (Path name : relativePath) {
+            String childName = name.toString();
+            if (childName.isEmpty()) {
+                continue;
+            }
+            node = node.findChildByName(childName);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
     }
 
     public Path getRelativePath() {
@@ -260,33 +645,50 @@ public class IndexNode implements Serializable {
         return relativePath;
     }
 
+    /**
+     * Reset the hashes and the subtree aggregates of this node and its parents
+     */
     public void resetHashesToRootNode() {
-        if (hash == null) {
+        if (hash == null && totalFileCount < 0) {
             return;
         }
 
         hash = null;
+        totalFileCount = -1;
         if (parent != null) {
             parent.resetHashesToRootNode();
         }
     }
 
+    /**
+     * @return Lazy stream of this directory and its subtree. Directories are visited before
+     * files like the {@link IndexNodeWalker}. The stream of a file is empty
+     */
     public Stream<IndexNode> stream() {
-        Stream.Builder<IndexNode> streamConsumer = Stream.builder();
-        IndexNodeWalker.walk(this, new Visitor<IndexNode>() {
-            @Override
-            public VisitorResult preVisitDirectory(IndexNode dir) throws IOException {
-                streamConsumer.accept(dir);
-                return super.preVisitDirectory(dir);
-            }
+        if (!getMode().isDirectory()) {
+            return Stream.empty();
+        }
+        return StreamSupport.stream(new IndexNodeSpliterator<>(this), false);
+    }
 
-            @Override
-            public VisitorResult visitFile(IndexNode file) throws IOException {
-                streamConsumer.accept(file);
-                return super.visitFile(file);
-            }
-        });
-        return streamConsumer.build();
+    /**
+     * Take the metadata of a scan of the same directory. The hash and the children are kept.
+     * The rollup up to the root is recalculated if the modification time changed
+     *
+     * @param other Scanned directory
+     */
+    public void copyDirectoryMetadataFrom(IndexNode other) {
+        assert mode.isDirectory() && other.getMode().isDirectory() : "Nodes must be directories";
+
+        boolean modified = modifiedTime != other.getModifiedTime();
+        size = other.getSize();
+        creationTime = other.getCreationTime();
+        modifiedTime = other.getModifiedTime();
+        inode = other.getInode();
+        device = other.getDevice();
+        for (IndexNode node = this; modified && node != null; node = node.parent) {
+            node.totalFileCount = -1;
+        }
     }
 
     public void copyFrom(IndexNode other) {
@@ -297,7 +699,23 @@ public class IndexNode implements Serializable {
         creationTime = other.getCreationTime();
         modifiedTime = other.getModifiedTime();
 
+        if (inode != other.getInode()) {
+            // A replaced file does not continue the previous content
+            digestState = null;
+        }
         inode = other.getInode();
+        device = other.getDevice();
         hash = other.getHash();
+        hashKind = other.getHashKind();
+        chunks = other.getChunks();
+        totalFileCount = -1;
+        // The digest state of the same file is kept to resume hashing of appended content
+    }
+
+    /**
+     * Loads the children of a directory lazily
+     */
+    interface ChildrenLoader {
+        List<IndexNode> load(IndexNode dir) throws IOException;
     }
 }
@@ -1,33 +1,216 @@
 package de.silef.service.file.node;
 
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
 import de.silef.service.file.tree.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
 
+import static de.silef.service.file.tree.Visitor.VisitorResult.CONTINUE;
+
 /**
  * Created by sebastian on 20.09.16.
  */
 public class IndexNodeCreator {
 
+    private static final Logger LOG = LoggerFactory.getLogger(IndexNodeCreator.class);
+
+    public static int getDefaultParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
     public static IndexNode create(Path base, Predicate<Path> indexPathFilter) throws IOException {
-        Visitor<Path> resolveLinkVisitor = new ResolveLinkVisitorFilter(base);
-        Visitor<Path> filterVisitor = new VisitorFilter<>(indexPathFilter);
-        IndexNodeVisitor nodeVisitor = new IndexNodeVisitor();
-        VisitorChain<Path> visitorChain = new VisitorChain<>(resolveLinkVisitor, filterVisitor, nodeVisitor);
+        return create(base, indexPathFilter, getDefaultParallelism());
+    }
+
+    /**
+     * Scan the directory tree of base. Each directory is scanned by a fork join task
+     *
+     * @param base Base directory
+     * @param indexPathFilter Path filter. Must be thread safe
+     * @param parallelism Count of concurrent directory scans
+     * @return Root node with calculated directory hashes
+     * @throws IOException
+     */
+    public static IndexNode create(Path base, Predicate<Path> indexPathFilter, int parallelism) throws IOException {
+        return create(base, indexPathFilter, parallelism, null);
+    }
 
-        Visitor<Path> suppressErrorVisitor = new SuppressErrorPathVisitor<>(visitorChain);
-        PathWalker.walk(base, suppressErrorVisitor);
+    /**
+     * Scan the directory tree of base incrementally. Unchanged directories of the previous
+     * tree are not listed again, only their known entries are read. Directories modified
+     * close to the scan time of the previous tree are listed anyway
+     *
+     * @param base Base directory
+     * @param indexPathFilter Path filter. Must be thread safe
+     * @param parallelism Count of concurrent directory scans
+     * @param previousRoot Previous root node of base or null for a full scan. It must not be modified while scanning
+     * @return Root node with calculated directory hashes
+     * @throws IOException
+     */
+    public static IndexNode create(Path base, Predicate<Path> indexPathFilter, int parallelism, IndexNode previousRoot) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        Visitor<PathInfo> pathFilter = createPathFilter(base, indexPathFilter);
+        PathInfo baseInfo = PathInfo.read(base);
+        if (!baseInfo.isDirectory() || pathFilter.preVisitDirectory(baseInfo) != CONTINUE || !baseInfo.isReadable()) {
+            throw new IOException("Could not read base directory " + base);
+        }
 
-        IndexNode root = nodeVisitor.getRoot();
-        calculateRootHash(root);
+        long scanTime = System.currentTimeMillis();
+        IndexNode root = scan(new IndexNodeScanTask(pathFilter, null, baseInfo, previousRoot), parallelism);
+        root.setScanTime(scanTime);
+        calculateRootHash(root, parallelism);
         return root;
     }
 
-    private static void calculateRootHash(IndexNode root) {
+    /**
+     * Scan a single path below base. Directories are scanned with their subtree
+     *
+     * @param base Base directory
+     * @param parent Existing parent node of the path
+     * @param path Path to scan
+     * @param indexPathFilter Path filter. Must be thread safe
+     * @param parallelism Count of concurrent directory scans
+     * @return Node of the path or null if the path does not exist or is filtered. Directory hashes are not calculated
+     * @throws IOException
+     */
+    public static IndexNode create(Path base, IndexNode parent, Path path, Predicate<Path> indexPathFilter, int parallelism) throws IOException {
+        assert parent != null : "Parent must not be null";
+
+        PathInfo info;
+        try {
+            info = PathInfo.read(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Visitor<PathInfo> pathFilter = createPathFilter(base, indexPathFilter);
+        if (!info.isReadable()) {
+            return null;
+        }
+        if (!info.isDirectory()) {
+            return pathFilter.visitFile(info) == CONTINUE ? IndexNode.createFromPathInfo(parent, info) : null;
+        }
+        if (pathFilter.preVisitDirectory(info) != CONTINUE) {
+            return null;
+        }
+        return scan(new IndexNodeScanTask(pathFilter, parent, info, null), parallelism);
+    }
+
+    /**
+     * Scan the directory tree of base into a node table without creating a node tree. The
+     * directories are listed sequentially. Content and directory hashes are not calculated
+     *
+     * @param base Base directory
+     * @param indexPathFilter Path filter
+     * @return Node table of the tree with SHA-1 as hash algorithm
+     * @throws IOException
+     */
+    public static ArrayIndexNodeTable createTable(Path base, Predicate<Path> indexPathFilter) throws IOException {
+        Visitor<PathInfo> pathFilter = createPathFilter(base, indexPathFilter);
+        PathInfo baseInfo = PathInfo.read(base);
+        if (!baseInfo.isDirectory() || pathFilter.preVisitDirectory(baseInfo) != CONTINUE || !baseInfo.isReadable()) {
+            throw new IOException("Could not read base directory " + base);
+        }
+
+        ArrayIndexNodeTable table = new ArrayIndexNodeTable(HashAlgorithm.SHA1);
+        setTableNode(table, IndexNodeTable.ROOT, baseInfo, "");
+        addTableChildren(table, IndexNodeTable.ROOT, baseInfo, pathFilter);
+        table.complete();
+        return table;
+    }
+
+    private static void addTableChildren(ArrayIndexNodeTable table, int number, PathInfo dir, Visitor<PathInfo> pathFilter) throws IOException {
+        List<PathInfo> infos = new ArrayList<>();
+        for (PathInfo info : PathWalker.list(dir.getPath())) {
+            if (info.isReadable() && accept(pathFilter, info)) {
+                infos.add(info);
+            }
+        }
+        // Directories are listed first, but the table sorts all children by name
+        infos.sort(Comparator.comparing(info -> info.getPath().getFileName().toString()));
+
+        int first = table.addChildren(number, infos.size());
+        for (int i = 0; i < infos.size(); i++) {
+            PathInfo info = infos.get(i);
+            setTableNode(table, first + i, info, info.getPath().getFileName().toString());
+        }
+        for (int i = 0; i < infos.size(); i++) {
+            if (infos.get(i).isDirectory()) {
+                addTableChildren(table, first + i, infos.get(i), pathFilter);
+            }
+        }
+    }
+
+    private static void setTableNode(ArrayIndexNodeTable table, int number, PathInfo info, String name) {
+        table.setNode(number, name, FileMode.create(info.getTypeMode()), info.getSize(), info.getCreationTime(),
+                info.getModifiedTime(), info.getInode(), FileHash.ZERO, HashKind.CONTENT);
+    }
+
+    private static boolean accept(Visitor<PathInfo> pathFilter, PathInfo info) {
+        try {
+            Visitor.VisitorResult result = info.isDirectory() ? pathFilter.preVisitDirectory(info) : pathFilter.visitFile(info);
+            return result == CONTINUE;
+        } catch (IOException e) {
+            LOG.info("Suppress error: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private static Visitor<PathInfo> createPathFilter(Path base, Predicate<Path> indexPathFilter) throws IOException {
+        Visitor<PathInfo> resolveLinkVisitor = new ResolveLinkVisitorFilter(base);
+        Visitor<PathInfo> filterVisitor = new VisitorFilter<>(info -> indexPathFilter.test(info.getPath()));
+        return new SuppressErrorPathVisitor<>(new VisitorChain<>(resolveLinkVisitor, filterVisitor));
+    }
+
+    private static IndexNode scan(IndexNodeScanTask task, int parallelism) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(task);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void calculateRootHash(IndexNode root, int parallelism) {
         resetAllDirectoryHashes(root);
-        root.getHash();
+        calculateDirectoryHashes(root, parallelism);
+    }
+
+    /**
+     * Calculate missing directory hashes. Independent subtrees are calculated concurrently
+     *
+     * @param root Root node
+     * @param parallelism Count of concurrent directory hash calculations
+     */
+    public static void calculateDirectoryHashes(IndexNode root, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        if (parallelism == 1 || root.hasHash()) {
+            root.getHash();
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new IndexNodeHashTask(root));
+        } finally {
+            pool.shutdown();
+        }
     }
 
     private static void resetAllDirectoryHashes(IndexNode root) {
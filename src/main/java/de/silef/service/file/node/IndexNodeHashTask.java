@@ -0,0 +1,37 @@
+package de.silef.service.file.node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork join task to calculate missing directory hashes of a subtree. Each subdirectory without
+ * hash is calculated by its own forked task. A directory hash is calculated after all its
+ * children are joined, so the hash equals the hash of a sequential calculation.
+ */
+class IndexNodeHashTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private IndexNode node;
+
+    IndexNodeHashTask(IndexNode node) {
+        this.node = node;
+    }
+
+    @Override
+    protected void compute() {
+        List<IndexNodeHashTask> dirTasks = new ArrayList<>();
+        for (IndexNode child : node.getChildren()) {
+            if (child.getMode().isDirectory() && !child.hasHash()) {
+                IndexNodeHashTask task = new IndexNodeHashTask(child);
+                task.fork();
+                dirTasks.add(task);
+            }
+        }
+        for (IndexNodeHashTask task : dirTasks) {
+            task.join();
+        }
+        node.getHash();
+    }
+}
@@ -1,28 +1,76 @@
 package de.silef.service.file.node;
 
+import de.silef.service.file.hash.DigestState;
+import de.silef.service.file.hash.FileChunk;
 import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.InflaterInputStream;
 
+import static de.silef.service.file.node.IndexNode.BLOCK_VERSION;
+import static de.silef.service.file.node.IndexNode.COMPACT_VERSION;
+import static de.silef.service.file.node.IndexNode.EXTENSION_CHUNKS;
+import static de.silef.service.file.node.IndexNode.EXTENSION_DIGEST_STATE;
+import static de.silef.service.file.node.IndexNode.EXTENSION_END;
+import static de.silef.service.file.node.IndexNode.EXTENSION_HASH_KIND;
+import static de.silef.service.file.node.IndexNode.EXTENSION_ROLLUP;
+import static de.silef.service.file.node.IndexNode.EXTENSION_SCAN_TIME;
+import static de.silef.service.file.node.IndexNode.EXTENSION_VERSION;
+import static de.silef.service.file.node.IndexNode.EXTERNAL_CHILDREN;
+import static de.silef.service.file.node.IndexNode.FORMAT_VERSION;
 import static de.silef.service.file.node.IndexNode.MAGIC_HEADER;
+import static de.silef.service.file.node.IndexNode.MAGIC_HEADER_V1;
 
 /**
  * Created by sebastian on 17.09.16.
  */
 public class IndexNodeReader {
 
+    private static final int HEADER_SIZE = 4 + 2 + 1 + 1;
+
+    private static final int ROLLUP_LENGTH = 3 * 8;
+
+    private int blockThreads = 1;
+
+    public int getBlockThreads() {
+        return blockThreads;
+    }
+
+    /**
+     * Set the count of threads to read the blocks of an index file. Blocks of a lazy read are
+     * read on access by the accessing thread
+     *
+     * @param blockThreads Count of threads
+     */
+    public void setBlockThreads(int blockThreads) {
+        if (blockThreads < 1) {
+            throw new IllegalArgumentException("Block thread count must be positive");
+        }
+        this.blockThreads = blockThreads;
+    }
+
     public IndexNode read(Path base, Path file) throws IOException {
         return read(base, file, false);
     }
 
     public IndexNode read(Path base, Path file, boolean suppressWarning) throws IOException {
         try {
-            try (InputStream input = new FileInputStream(file.toFile())) {
-                return read(input);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return read(channel, false);
             }
         } catch (IOException e) {
             if (suppressWarning) {
@@ -33,45 +81,444 @@ public class IndexNodeReader {
         }
     }
 
+    /**
+     * Read the index but load the children of directories with their own block on first
+     * access. The index file is kept open until all blocks are loaded or the lazy index is
+     * closed. Index files before format version 4 are read completely
+     *
+     * @param base Base directory
+     * @param file Index file
+     * @return Lazy index which must be closed
+     * @throws IOException
+     */
+    public LazyIndex readLazy(Path base, Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new LazyIndex(read(channel, true), channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read the index into a node table without creating the node tree. Only the nodes of the
+     * current path are held while the records are decoded
+     *
+     * @param file Index file
+     * @return Node table. Digest states and chunks are not part of the table
+     * @throws IOException
+     */
+    public ArrayIndexNodeTable readTable(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = IndexBlockTable.readFully(channel, 0, 4);
+            if (magic.getInt() != MAGIC_HEADER) {
+                channel.position(0);
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                        new InflaterInputStream(Channels.newInputStream(channel))))) {
+                    return readTable(input, readHeader(input));
+                }
+            }
+            byte[] headerBytes = IndexBlockTable.readFully(channel, 0, HEADER_SIZE).array();
+            IndexHeader header = readHeader(new DataInputStream(new ByteArrayInputStream(headerBytes)));
+            if (header.version < BLOCK_VERSION) {
+                throw new IOException("Unexpected uncompressed index of version " + header.version);
+            }
+            header.blocks = IndexBlockTable.read(channel, header.version);
+            try (DataInputStream input = header.blocks.openBlock(0)) {
+                return readTable(input, header);
+            }
+        }
+    }
+
+    private ArrayIndexNodeTable readTable(DataInputStream input, IndexHeader header) throws IOException {
+        ArrayIndexNodeTable table = new ArrayIndexNodeTable(header.hashAlgorithm);
+        IndexNode root = readRecord(null, null, null, input, header);
+        table.setNode(IndexNodeTable.ROOT, root);
+        readTableChildren(table, IndexNodeTable.ROOT, root, input, header);
+        table.complete();
+        return table;
+    }
+
+    private void readTableChildren(ArrayIndexNodeTable table, int number, IndexNode dir, DataInputStream input, IndexHeader header) throws IOException {
+        int childrenCount = readChildrenCount(input, header);
+        if (childrenCount == EXTERNAL_CHILDREN && header.blocks != null) {
+            int block = header.version >= COMPACT_VERSION ? (int) readVarLong(input) : input.readInt();
+            try (DataInputStream blockInput = header.blocks.openBlock(block)) {
+                readTableChildren(table, number, dir, blockInput, header, readChildrenCount(blockInput, header));
+            }
+        } else {
+            readTableChildren(table, number, dir, input, header, childrenCount);
+        }
+    }
+
+    private void readTableChildren(ArrayIndexNodeTable table, int number, IndexNode dir, DataInputStream input, IndexHeader header, int childrenCount) throws IOException {
+        if (childrenCount < 0) {
+            throw new IOException("Invalid children count: " + childrenCount);
+        }
+        // The children are numbered before the subtree of the first child is read
+        int first = table.addChildren(number, childrenCount);
+        IndexNode previous = null;
+        for (int i = 0; i < childrenCount; i++) {
+            IndexNode child = readRecord(dir, previous != null ? previous : dir, previous, input, header);
+            table.setNode(first + i, child);
+            readTableChildren(table, first + i, child, input, header);
+            previous = child;
+        }
+    }
+
+    private IndexNode read(FileChannel channel, boolean lazy) throws IOException {
+        ByteBuffer magic = IndexBlockTable.readFully(channel, 0, 4);
+        if (magic.getInt() != MAGIC_HEADER) {
+            // Index files before version 4 are a single zlib stream
+            channel.position(0);
+            return read(Channels.newInputStream(channel));
+        }
+
+        byte[] headerBytes = IndexBlockTable.readFully(channel, 0, HEADER_SIZE).array();
+        IndexHeader header = readHeader(new DataInputStream(new ByteArrayInputStream(headerBytes)));
+        if (header.version < BLOCK_VERSION) {
+            throw new IOException("Unexpected uncompressed index of version " + header.version);
+        }
+        header.blocks = IndexBlockTable.read(channel, header.version);
+        if (lazy) {
+            header.pendingBlocks = new AtomicInteger(header.blocks.size() - 1);
+        }
+        IndexNode root;
+        if (!lazy && blockThreads > 1 && header.blocks.size() > 1) {
+            ForkJoinPool pool = new ForkJoinPool(blockThreads);
+            try {
+                root = pool.invoke(new BlockReadTask(null, 0, header));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            try (DataInputStream input = header.blocks.openBlock(0)) {
+                root = readNode(null, null, input, header);
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new IOException("Could not read cache nodes", e);
+            }
+        }
+        root.setHashAlgorithm(header.hashAlgorithm);
+        if (lazy && header.pendingBlocks.get() == 0) {
+            channel.close();
+        }
+        return root;
+    }
+
+    private List<IndexNode> readBlock(IndexNode dir, int block, IndexHeader header) throws IOException {
+        List<IndexNode> children;
+        try (DataInputStream input = header.blocks.openBlock(block)) {
+            children = readChildren(dir, input, header, readChildrenCount(input, header));
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Could not read cache nodes", e);
+        }
+        // A failed block keeps its loader and is still pending
+        if (header.pendingBlocks != null && header.pendingBlocks.decrementAndGet() == 0) {
+            header.blocks.close();
+        }
+        return children;
+    }
+
     private IndexNode read(InputStream input) throws IOException {
         try (InflaterInputStream inflaterInput = new InflaterInputStream(input);
              BufferedInputStream bufferedInput = new BufferedInputStream(inflaterInput);
              DataInputStream dataInput = new DataInputStream(bufferedInput)) {
 
-            int header = dataInput.readInt();
-            if (header != MAGIC_HEADER) {
-                throw new IOException("Unexpected header: " + header);
-            }
-            return readNode(null, dataInput);
+            IndexHeader header = readHeader(dataInput);
+            IndexNode root = readNode(null, null, dataInput, header);
+            root.setHashAlgorithm(header.hashAlgorithm);
+            return root;
         } catch (ClassNotFoundException | ClassCastException e) {
             throw new IOException("Could not read cache nodes", e);
         }
     }
 
-    private IndexNode readNode(IndexNode parent, DataInputStream input)
+    private IndexHeader readHeader(DataInputStream input) throws IOException {
+        int header = input.readInt();
+        if (header == MAGIC_HEADER_V1) {
+            return new IndexHeader(1, HashAlgorithm.SHA1);
+        } else if (header != MAGIC_HEADER) {
+            throw new IOException("Unexpected header: " + header);
+        }
+
+        int version = input.readUnsignedShort();
+        if (version > FORMAT_VERSION) {
+            throw new IOException("Unsupported index format version: " + version);
+        }
+        HashAlgorithm hashAlgorithm = HashAlgorithm.create(input.readUnsignedByte());
+        int hashLength = input.readUnsignedByte();
+        if (hashLength != hashAlgorithm.getLength()) {
+            throw new IOException("Unexpected hash length of " + hashLength + " bytes for " + hashAlgorithm.getName());
+        }
+        return new IndexHeader(version, hashAlgorithm);
+    }
+
+    private IndexNode readNode(IndexNode parent, IndexNode previous, DataInputStream input, IndexHeader header)
             throws ClassNotFoundException, IOException {
 
+        IndexNode node = readRecord(parent, previous != null ? previous : parent, previous, input, header);
+
+        int childrenCount = readChildrenCount(input, header);
+        if (childrenCount == EXTERNAL_CHILDREN && header.blocks != null) {
+            int block = header.version >= COMPACT_VERSION ? (int) readVarLong(input) : input.readInt();
+            if (header.pendingBlocks != null) {
+                node.setChildrenLoader(dir -> readBlock(dir, block, header));
+            } else if (header.forkedBlocks != null) {
+                BlockReadTask task = new BlockReadTask(node, block, header);
+                task.fork();
+                header.forkedBlocks.add(task);
+            } else {
+                node.setChildren(readBlock(node, block, header));
+            }
+        } else {
+            node.setChildren(readChildren(node, input, header, childrenCount));
+        }
+        return node;
+    }
+
+    private int readChildrenCount(DataInputStream input, IndexHeader header) throws IOException {
+        if (header.version >= COMPACT_VERSION) {
+            return (int) unZigZag(readVarLong(input));
+        }
+        return input.readInt();
+    }
+
+    /**
+     * Read a node without its children
+     *
+     * @param parent Parent of the node
+     * @param reference Node of the time and inode differences or null
+     * @param previous Previous sibling of the front coded name or null
+     * @param input Index input
+     * @param header Header of the index
+     * @return Node
+     * @throws IOException
+     */
+    IndexNode readRecord(IndexNode parent, IndexNode reference, IndexNode previous, DataInputStream input, IndexHeader header) throws IOException {
+        if (header.version < COMPACT_VERSION) {
+            return readFixedRecord(parent, input, header);
+        }
+        FileMode mode = FileMode.create(input.readUnsignedByte() << 12);
+        long size = readVarLong(input);
+        long creationTime = unZigZag(readVarLong(input)) + (reference != null ? reference.getCreationTime() : 0);
+        long modifiedTime = unZigZag(readVarLong(input)) + (reference != null ? reference.getModifiedTime() : 0);
+        long inode = unZigZag(readVarLong(input)) + (reference != null ? reference.getInode() : 0);
+
+        FileHash hash = readHash(input, header);
+
+        int prefix = (int) readVarLong(input);
+        int suffix = (int) readVarLong(input);
+        byte[] previousName = previous != null ? previous.getName().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (prefix < 0 || prefix > previousName.length || suffix < 0) {
+            throw new IOException("Invalid front coded name");
+        }
+        byte[] nameBytes = Arrays.copyOf(previousName, prefix + suffix);
+        input.readFully(nameBytes, prefix, suffix);
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+        IndexNode node = IndexNode.createFromIndex(parent, mode, size, creationTime, modifiedTime, inode, hash, name);
+        readExtensions(node, input, header);
+        return node;
+    }
+
+    private IndexNode readFixedRecord(IndexNode parent, DataInputStream input, IndexHeader header) throws IOException {
         FileMode mode = FileMode.create(input.readInt());
         long size = input.readLong();
         long creationTime = input.readLong();
         long modifiedTime = input.readLong();
         long inode = input.readLong();
 
-        byte[] buf = new byte[FileHash.LENGTH];
-        int read = input.read(buf);
-        assert read == FileHash.LENGTH;
-        FileHash hash = new FileHash(buf);
+        FileHash hash = readHash(input, header);
 
         String name = input.readUTF();
 
         IndexNode node = IndexNode.createFromIndex(parent, mode, size, creationTime, modifiedTime, inode, hash, name);
+        if (header.version >= EXTENSION_VERSION) {
+            readExtensions(node, input, header);
+        }
+        return node;
+    }
 
-        int childrenCount = input.readInt();
+    private List<IndexNode> readChildren(IndexNode node, DataInputStream input, IndexHeader header, int childrenCount)
+            throws ClassNotFoundException, IOException {
+        if (childrenCount < 0) {
+            throw new IOException("Invalid children count: " + childrenCount);
+        }
         List<IndexNode> children = new ArrayList<>(childrenCount);
+        IndexNode previous = null;
         for (int i = 0; i < childrenCount; i++) {
-            children.add(readNode(node, input));
+            previous = readNode(node, previous, input, header);
+            children.add(previous);
+        }
+        return children;
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long readVarLong(DataInputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid variable length value");
+    }
+
+    private FileHash readHash(DataInputStream input, IndexHeader header) throws IOException {
+        byte[] buf = new byte[header.hashAlgorithm.getLength()];
+        input.readFully(buf);
+        FileHash hash = new FileHash(buf);
+        return hash.isZero() ? FileHash.ZERO : hash;
+    }
+
+    private void readExtensions(IndexNode node, DataInputStream input, IndexHeader header) throws IOException {
+        int tag;
+        while ((tag = input.readUnsignedByte()) != EXTENSION_END) {
+            int length = input.readInt();
+            if (tag == EXTENSION_HASH_KIND) {
+                if (length < 1) {
+                    throw new IOException("Invalid hash kind extension");
+                }
+                node.setHash(node.getHash(), HashKind.create(input.readUnsignedByte()));
+                skipFully(input, length - 1);
+            } else if (tag == EXTENSION_DIGEST_STATE) {
+                node.setDigestState(readDigestState(input, length));
+            } else if (tag == EXTENSION_CHUNKS) {
+                node.setChunks(readChunks(input, header));
+            } else if (tag == EXTENSION_ROLLUP && node.getMode().isDirectory()) {
+                if (length < ROLLUP_LENGTH) {
+                    throw new IOException("Invalid rollup extension");
+                }
+                node.setRollup(input.readLong(), input.readLong(), input.readLong());
+                // Newer versions might append further values
+                skipFully(input, length - ROLLUP_LENGTH);
+            } else if (tag == EXTENSION_SCAN_TIME && length >= 8) {
+                node.setScanTime(input.readLong());
+                skipFully(input, length - 8);
+            } else {
+                skipFully(input, length);
+            }
+        }
+    }
+
+    private DigestState readDigestState(DataInputStream input, int length) throws IOException {
+        long hashedLength = input.readLong();
+        byte[] check = new byte[input.readUnsignedByte()];
+        input.readFully(check);
+        int stateLength = length - 8 - 1 - check.length;
+        if (stateLength < 0) {
+            throw new IOException("Invalid digest state extension");
+        }
+        byte[] state = new byte[stateLength];
+        input.readFully(state);
+        return new DigestState(hashedLength, state, check);
+    }
+
+    private List<FileChunk> readChunks(DataInputStream input, IndexHeader header) throws IOException {
+        int count = input.readInt();
+        List<FileChunk> chunks = new ArrayList<>(count);
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            int length = input.readInt();
+            chunks.add(new FileChunk(offset, length, readHash(input, header)));
+            offset += length;
+        }
+        return chunks;
+    }
+
+    private void skipFully(DataInputStream input, int length) throws IOException {
+        int skipped = 0;
+        while (skipped < length) {
+            int n = input.skipBytes(length - skipped);
+            if (n <= 0) {
+                throw new EOFException("Unexpected end of index extension");
+            }
+            skipped += n;
+        }
+    }
+
+    /**
+     * Fork join task to read a block. Blocks of subdirectories are read by their own forked
+     * task while the block is decoded
+     */
+    private class BlockReadTask extends RecursiveTask<IndexNode> {
+
+        private static final long serialVersionUID = 1L;
+
+        private IndexNode dir;
+
+        private int block;
+
+        private IndexHeader header;
+
+        /**
+         * @param dir Directory of the block or null for the root block
+         * @param block Block number
+         * @param header Header of the index
+         */
+        BlockReadTask(IndexNode dir, int block, IndexHeader header) {
+            this.dir = dir;
+            this.block = block;
+            this.header = header;
+        }
+
+        @Override
+        protected IndexNode compute() {
+            IndexHeader blockHeader = header.forBlock();
+            IndexNode node;
+            try (DataInputStream input = header.blocks.openBlock(block)) {
+                if (dir == null) {
+                    node = readNode(null, null, input, blockHeader);
+                } else {
+                    dir.setChildren(readChildren(dir, input, blockHeader, readChildrenCount(input, blockHeader)));
+                    node = dir;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new UncheckedIOException(new IOException("Could not read cache nodes", e));
+            }
+            for (BlockReadTask task : blockHeader.forkedBlocks) {
+                task.join();
+            }
+            return node;
+        }
+    }
+
+    static class IndexHeader {
+        int version;
+        HashAlgorithm hashAlgorithm;
+        IndexBlockTable blocks = null;
+        /**
+         * Count of blocks which are not loaded yet in lazy mode or null
+         */
+        AtomicInteger pendingBlocks = null;
+        /**
+         * Tasks of the blocks referenced by the current block if blocks are read in parallel
+         */
+        List<BlockReadTask> forkedBlocks = null;
+
+        IndexHeader(int version, HashAlgorithm hashAlgorithm) {
+            this.version = version;
+            this.hashAlgorithm = hashAlgorithm;
+        }
+
+        /**
+         * @return Header to read a single block in parallel to other blocks
+         */
+        IndexHeader forBlock() {
+            IndexHeader header = new IndexHeader(version, hashAlgorithm);
+            header.blocks = blocks;
+            header.forkedBlocks = new ArrayList<>();
+            return header;
         }
-        node.setChildren(children);
-        return node;
     }
 }
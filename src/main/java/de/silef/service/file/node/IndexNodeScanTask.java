@@ -0,0 +1,160 @@
+package de.silef.service.file.node;
+
+import de.silef.service.file.tree.PathInfo;
+import de.silef.service.file.tree.PathWalker;
+import de.silef.service.file.tree.Visitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+import static de.silef.service.file.tree.Visitor.VisitorResult.CONTINUE;
+
+/**
+ * Fork join task to scan a directory. Each subdirectory is scanned by its own forked task.
+ *
+ * The children are collected in the same order as the {@link PathWalker} visits them, so the
+ * resulting node tree equals the tree of a sequential walk. The path filter must be thread safe.
+ *
+ * If a previous node of the directory is given and the directory is unchanged, the names of the
+ * previous children are reused instead of listing the directory. A directory is unchanged if its
+ * inode and modification time match and the count of previous subdirectories matches the link
+ * count of the directory. The children itself are still read, so file modifications are detected.
+ *
+ * Like racily clean entries of git, a directory which was modified shortly before the previous
+ * scan started might have been changed again within the same timestamp after it was listed.
+ * Such directories are always listed.
+ */
+class IndexNodeScanTask extends RecursiveTask<IndexNode> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexNodeScanTask.class);
+
+    /**
+     * Directories modified within this time before the previous scan are listed. It covers
+     * the 2 second timestamp resolution of FAT
+     */
+    static long RACY_TIME = 2000;
+
+    private Visitor<PathInfo> pathFilter;
+
+    private IndexNode parent;
+
+    private PathInfo dir;
+
+    private IndexNode previous;
+
+    private long previousScanTime;
+
+    IndexNodeScanTask(Visitor<PathInfo> pathFilter, IndexNode parent, PathInfo dir, IndexNode previous) {
+        this(pathFilter, parent, dir, previous, previous != null ? previous.getScanTime() : 0);
+    }
+
+    private IndexNodeScanTask(Visitor<PathInfo> pathFilter, IndexNode parent, PathInfo dir, IndexNode previous, long previousScanTime) {
+        this.pathFilter = pathFilter;
+        this.parent = parent;
+        this.dir = dir;
+        this.previous = previous;
+        this.previousScanTime = previousScanTime;
+    }
+
+    @Override
+    protected IndexNode compute() {
+        IndexNode node = parent == null ? IndexNode.createRootFromPathInfo(dir) : IndexNode.createFromPathInfo(parent, dir);
+
+        List<IndexNodeScanTask> dirTasks = new ArrayList<>();
+        List<IndexNode> files = new ArrayList<>();
+        for (PathInfo info : listPathInfos()) {
+            if (!info.isReadable()) {
+                continue;
+            }
+            if (info.isDirectory()) {
+                if (accept(info, true)) {
+                    IndexNodeScanTask task = new IndexNodeScanTask(pathFilter, node, info, findPrevious(info), previousScanTime);
+                    task.fork();
+                    dirTasks.add(task);
+                }
+            } else if (accept(info, false)) {
+                files.add(IndexNode.createFromPathInfo(node, info));
+            }
+        }
+
+        List<IndexNode> children = new ArrayList<>(dirTasks.size() + files.size());
+        for (IndexNodeScanTask task : dirTasks) {
+            children.add(task.join());
+        }
+        children.addAll(files);
+        node.setChildren(children);
+        return node;
+    }
+
+    private IndexNode findPrevious(PathInfo info) {
+        if (previous == null) {
+            return null;
+        }
+        IndexNode child = previous.findChildByName(info.getPath().getFileName().toString());
+        return child != null && child.getMode() == FileMode.DIRECTORY ? child : null;
+    }
+
+    private List<PathInfo> listPathInfos() {
+        try {
+            if (isUnchanged()) {
+                List<PathInfo> infos = readPreviousPathInfos();
+                if (infos != null) {
+                    return infos;
+                }
+            }
+            return PathWalker.list(dir.getPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean isUnchanged() {
+        if (previous == null || previous.getInode() == 0 || dir.getLinkCount() < 2) {
+            return false;
+        }
+        if (previous.getInode() != dir.getInode() || previous.getModifiedTime() != dir.getModifiedTime()) {
+            return false;
+        }
+        if (dir.getModifiedTime() + RACY_TIME > previousScanTime) {
+            // The directory might have been changed after it was listed
+            return false;
+        }
+        long subdirCount = previous.getChildren().stream().filter(n -> n.getMode() == FileMode.DIRECTORY).count();
+        return subdirCount == dir.getLinkCount() - 2;
+    }
+
+    /**
+     * @return Path infos of the previous children or null if a previous child is missing
+     */
+    private List<PathInfo> readPreviousPathInfos() {
+        List<IndexNode> previousChildren = previous.getChildren();
+        List<PathInfo> infos = new ArrayList<>(previousChildren.size());
+        for (IndexNode child : previousChildren) {
+            try {
+                infos.add(PathInfo.read(dir.getPath().resolve(child.getName())));
+            } catch (IOException e) {
+                LOG.debug("Previous directory entry is missing. List directory {}", dir.getPath());
+                return null;
+            }
+        }
+        infos.sort(PathWalker.sortByModeAndName());
+        return infos;
+    }
+
+    private boolean accept(PathInfo info, boolean isDirectory) {
+        try {
+            Visitor.VisitorResult result = isDirectory ? pathFilter.preVisitDirectory(info) : pathFilter.visitFile(info);
+            return result == CONTINUE;
+        } catch (IOException e) {
+            LOG.info("Suppress error: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+}
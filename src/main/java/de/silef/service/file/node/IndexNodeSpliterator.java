@@ -0,0 +1,105 @@
+package de.silef.service.file.node;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Lazy depth first spliterator of a node tree in the order of the {@link IndexNodeWalker}.
+ * Directories are expanded when they are reached, so only the pending siblings of the current
+ * path are held. A split hands the next pending subtrees to the new spliterator.
+ *
+ * The tree must not be modified while it is traversed.
+ *
+ * @param <T> Node type of the tree
+ */
+class IndexNodeSpliterator<T extends IndexTreeNode<T>> implements Spliterator<T> {
+
+    /**
+     * Pending entries. The first entry is visited next
+     */
+    private final Deque<Entry<T>> pending;
+
+    IndexNodeSpliterator(T dir) {
+        pending = new ArrayDeque<>();
+        pending.push(new Entry<>(dir, true));
+    }
+
+    private IndexNodeSpliterator(Deque<Entry<T>> pending) {
+        this.pending = pending;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        Entry<T> entry = pending.pollFirst();
+        if (entry == null) {
+            return false;
+        }
+        if (entry.expand) {
+            expand(entry.node);
+        }
+        action.accept(entry.node);
+        return true;
+    }
+
+    private void expand(T dir) {
+        // Children are sorted by name. Directories are pushed last to be visited first
+        List<T> children = dir.getChildren();
+        for (int i = children.size() - 1; i >= 0; i--) {
+            T child = children.get(i);
+            if (!child.getMode().isDirectory()) {
+                pending.push(new Entry<>(child, false));
+            }
+        }
+        for (int i = children.size() - 1; i >= 0; i--) {
+            T child = children.get(i);
+            if (child.getMode().isDirectory()) {
+                pending.push(new Entry<>(child, true));
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        if (pending.size() == 1) {
+            Entry<T> entry = pending.peekFirst();
+            if (!entry.expand) {
+                return null;
+            }
+            // Split the children of the directory but keep the directory as first entry
+            pending.pollFirst();
+            expand(entry.node);
+            pending.push(new Entry<>(entry.node, false));
+        }
+        if (pending.size() < 2) {
+            return null;
+        }
+        Deque<Entry<T>> prefix = new ArrayDeque<>();
+        for (int i = pending.size() / 2; i > 0; i--) {
+            prefix.addLast(pending.pollFirst());
+        }
+        return new IndexNodeSpliterator<>(prefix);
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    private static class Entry<T> {
+        T node;
+        boolean expand;
+
+        Entry(T node, boolean expand) {
+            this.node = node;
+            this.expand = expand;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package de.silef.service.file.node;
+
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
+
+/**
+ * Table of index nodes addressed by their node number. The root is node 0. The children of
+ * a directory have consecutive numbers from its first child and are sorted by name, so a
+ * child is found by binary search. Digest states and chunks are not part of the table.
+ */
+public interface IndexNodeTable {
+
+    int ROOT = 0;
+
+    /**
+     * Node number of a missing parent or child
+     */
+    int NONE = -1;
+
+    int getNodeCount();
+
+    HashAlgorithm getHashAlgorithm();
+
+    int getParent(int node);
+
+    int getFirstChild(int node);
+
+    int getChildCount(int node);
+
+    String getName(int node);
+
+    FileMode getMode(int node);
+
+    long getSize(int node);
+
+    long getCreationTime(int node);
+
+    long getModifiedTime(int node);
+
+    long getInode(int node);
+
+    FileHash getHash(int node);
+
+    HashKind getHashKind(int node);
+}
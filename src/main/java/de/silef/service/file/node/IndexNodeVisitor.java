@@ -1,9 +1,9 @@
 package de.silef.service.file.node;
 
+import de.silef.service.file.tree.PathInfo;
 import de.silef.service.file.tree.Visitor;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -13,7 +13,7 @@ import java.util.Map;
 /**
  * Created by sebastian on 17.09.16.
  */
-public class IndexNodeVisitor extends Visitor<Path> {
+public class IndexNodeVisitor extends Visitor<PathInfo> {
 
     private List<IndexNode> parentStack;
 
@@ -30,40 +30,40 @@ public class IndexNodeVisitor extends Visitor<Path> {
     }
 
     @Override
-    public VisitorResult preVisitDirectory(Path path) throws IOException {
-        if (!Files.isReadable(path)) {
+    public VisitorResult preVisitDirectory(PathInfo info) throws IOException {
+        if (!info.isReadable()) {
             return VisitorResult.SKIP;
         }
 
+        Path path = info.getPath();
         IndexNode node;
         if (parentStack.isEmpty()) {
-            node = IndexNode.createRootFromPath(path);
-            pathToChildren.put(path, new ArrayList<>());
+            node = IndexNode.createRootFromPathInfo(info);
         } else {
             IndexNode parent = parentStack.get(parentStack.size() - 1);
-            node = IndexNode.createFromPath(parent, path);
+            node = IndexNode.createFromPathInfo(parent, info);
             pathToChildren.get(path.getParent()).add(node);
         }
 
         parentStack.add(node);
         pathToChildren.put(path, new ArrayList<>());
-        return super.preVisitDirectory(path);
+        return super.preVisitDirectory(info);
     }
 
     @Override
-    public VisitorResult visitFile(Path path) throws IOException {
-        if (Files.isReadable(path)) {
+    public VisitorResult visitFile(PathInfo info) throws IOException {
+        if (info.isReadable()) {
             IndexNode parent = parentStack.get(parentStack.size() - 1);
-            IndexNode child = IndexNode.createFromPath(parent, path);
-            pathToChildren.get(path.getParent()).add(child);
+            IndexNode child = IndexNode.createFromPathInfo(parent, info);
+            pathToChildren.get(info.getPath().getParent()).add(child);
         }
-        return super.visitFile(path);
+        return super.visitFile(info);
     }
 
     @Override
-    public VisitorResult postVisitDirectory(Path dir) throws IOException {
+    public VisitorResult postVisitDirectory(PathInfo dir) throws IOException {
         lastDirNode = parentStack.remove(parentStack.size() - 1);
-        List<IndexNode> children = pathToChildren.remove(dir);
+        List<IndexNode> children = pathToChildren.remove(dir.getPath());
         lastDirNode.setChildren(children);
         return super.postVisitDirectory(dir);
     }
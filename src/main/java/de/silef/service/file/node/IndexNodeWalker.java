@@ -6,8 +6,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 
 import static de.silef.service.file.tree.Visitor.VisitorResult.*;
@@ -37,17 +35,11 @@ public class IndexNodeWalker {
             return result;
         }
 
-        List<IndexNode> sortedChildren = new ArrayList<>(node.getChildren());
-        sortedChildren.sort(sortByModeAndName());
-        for (IndexNode child : sortedChildren) {
-            if (child.getMode().isDirectory()) {
-                result = walk(child, visitor);
-            } else {
-                result = visitor.visitFile(child);
-            }
-            if (result == SKIP_SIBLINGS || result == TERMINATE) {
-                break;
-            }
+        // Children are sorted by name. Directories are visited before files
+        List<IndexNode> children = node.getChildren();
+        result = walkChildren(children, visitor, true);
+        if (result != SKIP_SIBLINGS && result != TERMINATE) {
+            result = walkChildren(children, visitor, false);
         }
         if (result == TERMINATE) {
             return TERMINATE;
@@ -55,16 +47,22 @@ public class IndexNodeWalker {
         return visitor.postVisitDirectory(node);
     }
 
-    private static Comparator<IndexNode> sortByModeAndName() {
-        return (a, b) -> {
-            if (a.getMode().isDirectory() && !b.getMode().isDirectory()) {
-                return -1;
-            } else if (!a.getMode().isDirectory() && b.getMode().isDirectory()) {
-                return 1;
+    private static Visitor.VisitorResult walkChildren(List<IndexNode> children, Visitor<? super IndexNode> visitor, boolean directories) throws IOException {
+        Visitor.VisitorResult result = CONTINUE;
+        for (IndexNode child : children) {
+            if (child.getMode().isDirectory() != directories) {
+                continue;
+            }
+            if (directories) {
+                result = walk(child, visitor);
             } else {
-                return a.getName().compareTo(b.getName());
+                result = visitor.visitFile(child);
             }
-        };
+            if (result == SKIP_SIBLINGS || result == TERMINATE) {
+                break;
+            }
+        }
+        return result;
     }
 
 }
@@ -1,10 +1,32 @@
 package de.silef.service.file.node;
 
+import de.silef.service.file.hash.DigestState;
+import de.silef.service.file.hash.FileChunk;
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
+
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.zip.DeflaterOutputStream;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static de.silef.service.file.node.IndexNode.EXTENSION_CHUNKS;
+import static de.silef.service.file.node.IndexNode.EXTENSION_DIGEST_STATE;
+import static de.silef.service.file.node.IndexNode.EXTENSION_END;
+import static de.silef.service.file.node.IndexNode.EXTENSION_HASH_KIND;
+import static de.silef.service.file.node.IndexNode.EXTENSION_ROLLUP;
+import static de.silef.service.file.node.IndexNode.EXTENSION_SCAN_TIME;
+import static de.silef.service.file.node.IndexNode.EXTERNAL_CHILDREN;
+import static de.silef.service.file.node.IndexNode.FORMAT_VERSION;
 import static de.silef.service.file.node.IndexNode.MAGIC_HEADER;
 
 /**
@@ -12,37 +34,286 @@ import static de.silef.service.file.node.IndexNode.MAGIC_HEADER;
  */
 public class IndexNodeWriter {
 
+    private static final int HEADER_SIZE = 4 + 2 + 1 + 1;
+
+    private int blockNodeCount = 4096;
+
+    private int blockThreads = 1;
+
     public void write(IndexNode root, Path path) throws IOException {
         try (FileOutputStream output = new FileOutputStream(path.toFile())) {
             write(root, output);
         }
     }
 
+    public int getBlockNodeCount() {
+        return blockNodeCount;
+    }
+
+    /**
+     * Subdirectories are written into the block of their parent while the block has at most
+     * this count of nodes. Larger subdirectories get their own block
+     *
+     * @param blockNodeCount Preferred maximum count of nodes per block
+     */
+    public void setBlockNodeCount(int blockNodeCount) {
+        if (blockNodeCount < 1) {
+            throw new IllegalArgumentException("Block node count must be positive");
+        }
+        this.blockNodeCount = blockNodeCount;
+    }
+
+    public int getBlockThreads() {
+        return blockThreads;
+    }
+
+    /**
+     * Set the count of threads to compress blocks. The file content does not depend on the
+     * count of threads
+     *
+     * @param blockThreads Count of threads
+     */
+    public void setBlockThreads(int blockThreads) {
+        if (blockThreads < 1) {
+            throw new IllegalArgumentException("Block thread count must be positive");
+        }
+        this.blockThreads = blockThreads;
+    }
+
     public void write(IndexNode root, OutputStream output) throws IOException {
-        try (DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(output);
-             BufferedOutputStream bufferedOutput = new BufferedOutputStream(deflaterOutput);
-             DataOutputStream dataOutput = new DataOutputStream(bufferedOutput)) {
+        try (DataOutputStream dataOutput = new DataOutputStream(new BufferedOutputStream(output))) {
 
+            HashAlgorithm hashAlgorithm = root.getHashAlgorithm();
             dataOutput.writeInt(MAGIC_HEADER);
-            writeNode(root, dataOutput);
+            dataOutput.writeShort(FORMAT_VERSION);
+            dataOutput.writeByte(hashAlgorithm.getId());
+            dataOutput.writeByte(hashAlgorithm.getLength());
+
+            byte[] zeroHash = new byte[hashAlgorithm.getLength()];
+            IndexBlockTable table = new IndexBlockTable();
+            List<IndexNode> blockDirs = new ArrayList<>();
+            blockDirs.add(root);
+            ExecutorService executor = blockThreads > 1 ? Executors.newFixedThreadPool(blockThreads) : null;
+            try {
+                Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+                long position = HEADER_SIZE;
+                // Blocks are appended to the list while their parent blocks are serialized
+                for (int i = 0; i < blockDirs.size(); i++) {
+                    IndexNode dir = blockDirs.get(i);
+                    byte[] content = IndexBlockTable.serialize(out -> {
+                        BlockWriter writer = new BlockWriter(out, zeroHash, blockDirs, dir);
+                        if (dir == root) {
+                            writer.writeNode(root, null);
+                        } else {
+                            writer.writeChildren(dir);
+                        }
+                    });
+                    if (executor == null) {
+                        position = writeBlock(dataOutput, table, position, IndexBlockTable.deflate(content));
+                        continue;
+                    }
+                    // Blocks are compressed concurrently but written in block order
+                    if (pendingBlocks.size() == blockThreads * 2) {
+                        position = writeBlock(dataOutput, table, position, waitForBlock(pendingBlocks.poll()));
+                    }
+                    pendingBlocks.add(executor.submit(() -> IndexBlockTable.deflate(content)));
+                }
+                while (!pendingBlocks.isEmpty()) {
+                    position = writeBlock(dataOutput, table, position, waitForBlock(pendingBlocks.poll()));
+                }
+                table.write(dataOutput, position);
+            } finally {
+                if (executor != null) {
+                    executor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    private long writeBlock(DataOutputStream output, IndexBlockTable table, long position, byte[] block) throws IOException {
+        // Blocks are written in order, so the table size is the number of the block
+        table.add(position, block.length);
+        output.write(block);
+        return position + block.length;
+    }
+
+    private byte[] waitForBlock(Future<byte[]> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Index block compression was interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not compress index block", e.getCause());
+        }
+    }
+
+    static String toBlockPath(IndexNode dir) {
+        return toBlockPath(dir.getRelativePath());
+    }
+
+    static String toBlockPath(Path relativePath) {
+        StringBuilder path = new StringBuilder();
+        for (Path name : relativePath) {
+            if (name.toString().isEmpty()) {
+                continue;
+            }
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(name.toString());
+        }
+        return path.toString();
+    }
+
+    /**
+     * Writes the nodes of a single block
+     */
+    private class BlockWriter {
+
+        private DataOutputStream output;
+
+        private byte[] zeroHash;
+
+        private List<IndexNode> blockDirs;
+
+        private IndexNode blockDir;
+
+        private long nodeCount = 0;
+
+        BlockWriter(DataOutputStream output, byte[] zeroHash, List<IndexNode> blockDirs, IndexNode blockDir) {
+            this.output = output;
+            this.zeroHash = zeroHash;
+            this.blockDirs = blockDirs;
+            this.blockDir = blockDir;
+        }
+
+        void writeNode(IndexNode node, IndexNode previous) throws IOException {
+            nodeCount++;
+            writeRecord(node, previous != null ? previous : node.getParent(), previous, output, zeroHash);
+
+            if (node != blockDir && node.getMode().isDirectory() && nodeCount + node.getTotalFileCount() - 1 > blockNodeCount) {
+                writeVarLong(output, zigZag(EXTERNAL_CHILDREN));
+                writeVarLong(output, blockDirs.size());
+                blockDirs.add(node);
+            } else {
+                writeChildren(node);
+            }
+        }
+
+        void writeChildren(IndexNode node) throws IOException {
+            Collection<IndexNode> children = node.getChildren();
+            writeVarLong(output, zigZag(children.size()));
+            IndexNode previous = null;
+            for (IndexNode child : children) {
+                writeNode(child, previous);
+                previous = child;
+            }
         }
     }
 
-    private void writeNode(IndexNode node, DataOutputStream output)
-            throws IOException {
-        output.writeInt(node.getMode().getValue());
-        output.writeLong(node.getSize());
-        output.writeLong(node.getCreationTime());
-        output.writeLong(node.getModifiedTime());
-        output.writeLong(node.getInode());
-        output.write(node.getHash().getBytes());
+    /**
+     * Write the node without its children. Times and inode are written as difference to the
+     * reference node, which is the previous sibling or the parent for the first child. The name
+     * is written as length of the common prefix with the name of the previous sibling and the
+     * remaining bytes
+     *
+     * @param node Node to write
+     * @param reference Node of the time and inode differences or null
+     * @param previous Previous sibling in name order or null
+     * @param output Index output
+     * @param zeroHash Zero hash of the hash algorithm
+     * @throws IOException
+     */
+    void writeRecord(IndexNode node, IndexNode reference, IndexNode previous, DataOutputStream output, byte[] zeroHash) throws IOException {
+        output.writeByte(node.getMode().getValue() >> 12);
+        writeVarLong(output, node.getSize());
+        writeVarLong(output, zigZag(node.getCreationTime() - (reference != null ? reference.getCreationTime() : 0)));
+        writeVarLong(output, zigZag(node.getModifiedTime() - (reference != null ? reference.getModifiedTime() : 0)));
+        writeVarLong(output, zigZag(node.getInode() - (reference != null ? reference.getInode() : 0)));
+        writeHash(node.getHash(), output, zeroHash);
+
+        byte[] name = node.getName().getBytes(StandardCharsets.UTF_8);
+        int prefix = 0;
+        if (previous != null) {
+            byte[] previousName = previous.getName().getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(name.length, previousName.length);
+            while (prefix < length && name[prefix] == previousName[prefix]) {
+                prefix++;
+            }
+        }
+        writeVarLong(output, prefix);
+        writeVarLong(output, name.length - prefix);
+        output.write(name, prefix, name.length - prefix);
 
-        output.writeUTF(node.getName());
+        writeExtensions(node, output, zeroHash);
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Write an unsigned value in groups of 7 bits, lowest group first. The high bit of a byte
+     * marks a following byte
+     */
+    static void writeVarLong(DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    private void writeExtensions(IndexNode node, DataOutputStream output, byte[] zeroHash) throws IOException {
+        if (node.getHashKind() != HashKind.CONTENT) {
+            output.writeByte(EXTENSION_HASH_KIND);
+            output.writeInt(1);
+            output.writeByte(node.getHashKind().getId());
+        }
+        DigestState digestState = node.getDigestState();
+        if (digestState != null) {
+            byte[] check = digestState.getCheck();
+            byte[] state = digestState.getState();
+            output.writeByte(EXTENSION_DIGEST_STATE);
+            output.writeInt(8 + 1 + check.length + state.length);
+            output.writeLong(digestState.getLength());
+            output.writeByte(check.length);
+            output.write(check);
+            output.write(state);
+        }
+        List<FileChunk> chunks = node.getChunks();
+        if (chunks != null) {
+            output.writeByte(EXTENSION_CHUNKS);
+            output.writeInt(4 + chunks.size() * (4 + zeroHash.length));
+            output.writeInt(chunks.size());
+            for (FileChunk chunk : chunks) {
+                output.writeInt(chunk.getLength());
+                writeHash(chunk.getHash(), output, zeroHash);
+            }
+        }
+        if (node.getMode().isDirectory()) {
+            output.writeByte(EXTENSION_ROLLUP);
+            output.writeInt(3 * 8);
+            output.writeLong(node.getTotalFileCount());
+            output.writeLong(node.getTotalFileSize());
+            output.writeLong(node.getNewestModifiedTime());
+        }
+        if (node.getParent() == null && node.getScanTime() > 0) {
+            output.writeByte(EXTENSION_SCAN_TIME);
+            output.writeInt(8);
+            output.writeLong(node.getScanTime());
+        }
+        output.writeByte(EXTENSION_END);
+    }
 
-        Collection<IndexNode> children = node.getChildren();
-        output.writeInt(children.size());
-        for (IndexNode child : children) {
-            writeNode(child, output);
+    private void writeHash(FileHash hash, DataOutputStream output, byte[] zeroHash) throws IOException {
+        if (hash.isZero()) {
+            output.write(zeroHash);
+        } else if (hash.getLength() != zeroHash.length) {
+            throw new IOException("Unexpected hash length of " + hash.getLength() + " bytes. Expected " + zeroHash.length + " bytes");
+        } else {
+            output.write(hash.getBytes());
         }
     }
 
@@ -0,0 +1,68 @@
+package de.silef.service.file.node;
+
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Read access to a node of an index tree. Nodes of the heap tree and views of a node table
+ * share it, so both trees are navigated and streamed alike.
+ *
+ * @param <T> Node type of the tree
+ */
+public interface IndexTreeNode<T extends IndexTreeNode<T>> {
+
+    /**
+     * @return Parent node or null for the root
+     */
+    T getParent();
+
+    String getName();
+
+    FileMode getMode();
+
+    long getSize();
+
+    long getCreationTime();
+
+    long getModifiedTime();
+
+    long getInode();
+
+    FileHash getHash();
+
+    HashKind getHashKind();
+
+    HashAlgorithm getHashAlgorithm();
+
+    /**
+     * @return Children sorted by name
+     */
+    List<T> getChildren();
+
+    /**
+     * @param name Name of the child
+     * @return Child with the name or null if not found
+     */
+    T findChildByName(String name);
+
+    /**
+     * Find a node of the subtree
+     *
+     * @param relativePath Path relative to this node
+     * @return Node of the path or null if not found
+     */
+    T findByRelativePath(Path relativePath);
+
+    Path getRelativePath();
+
+    /**
+     * @return Lazy stream of this directory and its subtree. Directories are visited before
+     * files like the {@link IndexNodeWalker}. The stream of a file is empty
+     */
+    Stream<T> stream();
+}
@@ -0,0 +1,38 @@
+package de.silef.service.file.node;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Root of a lazily read index with the open index file. The file is released when all
+ * blocks are loaded or on close. Children which are not loaded before close can not be
+ * accessed anymore
+ */
+public class LazyIndex implements Closeable {
+
+    private final IndexNode root;
+
+    private final FileChannel channel;
+
+    LazyIndex(IndexNode root, FileChannel channel) {
+        this.root = root;
+        this.channel = channel;
+    }
+
+    public IndexNode getRoot() {
+        return root;
+    }
+
+    /**
+     * @return true if the index file is still open for blocks which are not loaded yet
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
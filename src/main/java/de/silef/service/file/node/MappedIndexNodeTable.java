@@ -0,0 +1,389 @@
+package de.silef.service.file.node;
+
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Node table of fixed size records in a memory mapped file. Opening a table maps the file
+ * without reading the nodes. The records stay outside the Java heap and are paged in by
+ * the operating system when they are accessed.
+ *
+ * The file starts with a header of the magic, version, hash algorithm id, hash length, node
+ * count and name pool offset and length. The records of all nodes follow in node number order
+ * and the name pool of UTF-8 names ends the file.
+ */
+public class MappedIndexNodeTable implements IndexNodeTable {
+
+    static int MAGIC_HEADER = 0x23100710;
+
+    /**
+     * Version 2 stores the child count instead of the next sibling, since children are
+     * consecutive nodes. Version 3 stores the file type bits of the mode and the hash kind id
+     * instead of enum ordinals and does not share equal names
+     */
+    static int FORMAT_VERSION = 3;
+
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * Parent, first child and child count, name offset and length, mode, hash kind, size,
+     * creation and modified time and inode followed by the hash
+     */
+    private static final int RECORD_SIZE = 3 * 4 + 8 + 2 + 1 + 1 + 4 * 8;
+
+    private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    private static final long MAP_REGION_SIZE = 1L << 30;
+
+    private final HashAlgorithm hashAlgorithm;
+
+    private final int hashLength;
+
+    private final int recordSize;
+
+    private final int nodeCount;
+
+    private final int recordsPerRegion;
+
+    private final MappedByteBuffer[] recordRegions;
+
+    private final MappedByteBuffer[] nameRegions;
+
+    private MappedIndexNodeTable(HashAlgorithm hashAlgorithm, int nodeCount, MappedByteBuffer[] recordRegions, int recordsPerRegion, MappedByteBuffer[] nameRegions) {
+        this.hashAlgorithm = hashAlgorithm;
+        this.hashLength = hashAlgorithm.getLength();
+        this.recordSize = RECORD_SIZE + hashLength;
+        this.nodeCount = nodeCount;
+        this.recordRegions = recordRegions;
+        this.recordsPerRegion = recordsPerRegion;
+        this.nameRegions = nameRegions;
+    }
+
+    /**
+     * Write a table file of a node tree. The records are written in node number order by a
+     * walk of the tree, so no other copy of the tree is created. The file is replaced after
+     * it is written, so tables which are mapped from the previous file stay valid
+     *
+     * @param root Root node of the tree
+     * @param file Target file
+     * @throws IOException
+     */
+    public static void write(IndexNode root, Path file) throws IOException {
+        long count = root.getTotalFileCount();
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Too many nodes for a node table: " + count);
+        }
+        write(file, root.getHashAlgorithm(), (int) count, writer -> {
+            int childCount = root.getChildren().size();
+            writer.write(NONE, childCount > 0 ? ROOT + 1 : NONE, childCount, root);
+            writeChildren(writer, root, ROOT, ROOT + 1);
+        });
+    }
+
+    /**
+     * Write the children of a directory and their subtrees. The children of a directory are
+     * followed by the subtree of its first child, then the subtree of the second child and so on
+     */
+    private static void writeChildren(RecordWriter writer, IndexNode dir, int node, int first) throws IOException {
+        List<IndexNode> children = dir.getChildren();
+        int next = first + children.size();
+        for (IndexNode child : children) {
+            int childCount = child.getMode().isDirectory() ? child.getChildren().size() : 0;
+            writer.write(node, childCount > 0 ? next : NONE, childCount, child);
+            next += child.getTotalFileCount() - 1;
+        }
+        next = first + children.size();
+        for (int i = 0; i < children.size(); i++) {
+            IndexNode child = children.get(i);
+            if (child.getMode().isDirectory()) {
+                writeChildren(writer, child, first + i, next);
+            }
+            next += child.getTotalFileCount() - 1;
+        }
+    }
+
+    /**
+     * Write a table file of another table
+     *
+     * @param table Source table
+     * @param file Target file
+     * @throws IOException
+     * @see #write(IndexNode, Path)
+     */
+    public static void write(IndexNodeTable table, Path file) throws IOException {
+        write(file, table.getHashAlgorithm(), table.getNodeCount(), writer -> {
+            for (int node = 0; node < table.getNodeCount(); node++) {
+                writer.write(table.getParent(node), table.getFirstChild(node), table.getChildCount(node),
+                        table.getName(node), table.getMode(node), table.getHashKind(node), table.getSize(node),
+                        table.getCreationTime(node), table.getModifiedTime(node), table.getInode(node), table.getHash(node));
+            }
+        });
+    }
+
+    private static void write(Path file, HashAlgorithm hashAlgorithm, int count, TableContent content) throws IOException {
+        long namePoolOffset = HEADER_SIZE + (long) count * (RECORD_SIZE + hashAlgorithm.getLength());
+
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        Path namePoolFile = Files.createTempFile(dir, file.getFileName().toString(), ".names");
+        try {
+            try (OutputStream output = Files.newOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+                 OutputStream nameOutput = new BufferedOutputStream(Files.newOutputStream(namePoolFile))) {
+
+                out.writeInt(MAGIC_HEADER);
+                out.writeShort(FORMAT_VERSION);
+                out.writeByte(hashAlgorithm.getId());
+                out.writeByte(hashAlgorithm.getLength());
+                out.writeInt(count);
+                out.writeLong(namePoolOffset);
+                out.write(new byte[HEADER_SIZE - 4 - 2 - 1 - 1 - 4 - 8]);
+
+                RecordWriter writer = new RecordWriter(out, nameOutput, hashAlgorithm);
+                content.write(writer);
+                if (writer.count != count) {
+                    throw new IOException("Unexpected node count of " + writer.count + " instead of " + count);
+                }
+
+                nameOutput.flush();
+                out.flush();
+                Files.copy(namePoolFile, output);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(namePoolFile);
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private interface TableContent {
+        void write(RecordWriter writer) throws IOException;
+    }
+
+    /**
+     * Writes node records and appends their names to the name pool
+     */
+    private static class RecordWriter {
+
+        private final DataOutputStream out;
+
+        private final OutputStream nameOutput;
+
+        private final HashAlgorithm hashAlgorithm;
+
+        private long namePoolLength = 0;
+
+        private int count = 0;
+
+        RecordWriter(DataOutputStream out, OutputStream nameOutput, HashAlgorithm hashAlgorithm) {
+            this.out = out;
+            this.nameOutput = nameOutput;
+            this.hashAlgorithm = hashAlgorithm;
+        }
+
+        void write(int parent, int firstChild, int childCount, IndexNode node) throws IOException {
+            write(parent, firstChild, childCount, node.getName(), node.getMode(), node.getHashKind(), node.getSize(),
+                    node.getCreationTime(), node.getModifiedTime(), node.getInode(), node.getHash());
+        }
+
+        void write(int parent, int firstChild, int childCount, String name, FileMode mode, HashKind hashKind,
+                   long size, long creationTime, long modifiedTime, long inode, FileHash hash) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (nameBytes.length > MAX_NAME_LENGTH) {
+                throw new IOException("Name is too long: " + name);
+            }
+            nameOutput.write(nameBytes);
+
+            out.writeInt(parent);
+            out.writeInt(firstChild);
+            out.writeInt(childCount);
+            out.writeLong(namePoolLength);
+            out.writeShort(nameBytes.length);
+            out.writeByte(mode.getValue() >> 12);
+            out.writeByte(hashKind.getId());
+            out.writeLong(size);
+            out.writeLong(creationTime);
+            out.writeLong(modifiedTime);
+            out.writeLong(inode);
+            writeHash(hash);
+
+            namePoolLength += nameBytes.length;
+            count++;
+        }
+
+        private void writeHash(FileHash hash) throws IOException {
+            if (hash.isZero()) {
+                out.write(new byte[hashAlgorithm.getLength()]);
+            } else if (hash.getLength() != hashAlgorithm.getLength()) {
+                throw new IOException("Unexpected hash length of " + hash.getLength() + " bytes for " + hashAlgorithm.getName());
+            } else {
+                out.write(hash.getBytes());
+            }
+        }
+    }
+
+    /**
+     * Map a table file. The file must not be modified while the table is used
+     *
+     * @param file Table file
+     * @return Mapped table
+     * @throws IOException
+     */
+    public static MappedIndexNodeTable open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(HEADER_SIZE, channel.size()));
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC_HEADER) {
+                throw new IOException("Unexpected node table header");
+            }
+            int version = header.getShort() & 0xFFFF;
+            if (version != FORMAT_VERSION) {
+                // A node table is rewritten from its index
+                throw new IOException("Unsupported node table version: " + version);
+            }
+            HashAlgorithm hashAlgorithm = HashAlgorithm.create(header.get() & 0xFF);
+            int hashLength = header.get() & 0xFF;
+            if (hashLength != hashAlgorithm.getLength()) {
+                throw new IOException("Unexpected hash length of " + hashLength + " bytes for " + hashAlgorithm.getName());
+            }
+            int nodeCount = header.getInt();
+            long namePoolOffset = header.getLong();
+
+            int recordSize = RECORD_SIZE + hashLength;
+            if (nodeCount < 1 || namePoolOffset != HEADER_SIZE + (long) nodeCount * recordSize || namePoolOffset > channel.size()) {
+                throw new IOException("Invalid node table");
+            }
+
+            // Records never cross a region
+            int recordsPerRegion = (int) (MAP_REGION_SIZE / recordSize);
+            MappedByteBuffer[] recordRegions = new MappedByteBuffer[(nodeCount + recordsPerRegion - 1) / recordsPerRegion];
+            for (int i = 0; i < recordRegions.length; i++) {
+                long position = HEADER_SIZE + (long) i * recordsPerRegion * recordSize;
+                long size = (long) Math.min(recordsPerRegion, nodeCount - i * recordsPerRegion) * recordSize;
+                recordRegions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            }
+
+            // Name regions overlap by the maximum name length so that each name is within one region
+            long namePoolLength = channel.size() - namePoolOffset;
+            MappedByteBuffer[] nameRegions = new MappedByteBuffer[(int) Math.max(1, (namePoolLength + MAP_REGION_SIZE - 1) / MAP_REGION_SIZE)];
+            for (int i = 0; i < nameRegions.length; i++) {
+                long position = i * MAP_REGION_SIZE;
+                long size = Math.min(MAP_REGION_SIZE + MAX_NAME_LENGTH, namePoolLength - position);
+                nameRegions[i] = channel.map(FileChannel.MapMode.READ_ONLY, namePoolOffset + position, size);
+            }
+
+            return new MappedIndexNodeTable(hashAlgorithm, nodeCount, recordRegions, recordsPerRegion, nameRegions);
+        }
+    }
+
+    private MappedByteBuffer getRecordRegion(int node) {
+        return recordRegions[node / recordsPerRegion];
+    }
+
+    private int getRecordPosition(int node) {
+        return (node % recordsPerRegion) * recordSize;
+    }
+
+    @Override
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    @Override
+    public int getParent(int node) {
+        return getRecordRegion(node).getInt(getRecordPosition(node));
+    }
+
+    @Override
+    public int getFirstChild(int node) {
+        return getRecordRegion(node).getInt(getRecordPosition(node) + 4);
+    }
+
+    @Override
+    public int getChildCount(int node) {
+        return getRecordRegion(node).getInt(getRecordPosition(node) + 8);
+    }
+
+    @Override
+    public String getName(int node) {
+        MappedByteBuffer record = getRecordRegion(node);
+        int position = getRecordPosition(node);
+        long offset = record.getLong(position + 12);
+        int length = record.getShort(position + 20) & 0xFFFF;
+
+        MappedByteBuffer names = nameRegions[(int) (offset / MAP_REGION_SIZE)];
+        int namePosition = (int) (offset % MAP_REGION_SIZE);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = names.get(namePosition + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public FileMode getMode(int node) {
+        return FileMode.create((getRecordRegion(node).get(getRecordPosition(node) + 22) & 0xFF) << 12);
+    }
+
+    @Override
+    public HashKind getHashKind(int node) {
+        int id = getRecordRegion(node).get(getRecordPosition(node) + 23) & 0xFF;
+        try {
+            return HashKind.create(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long getSize(int node) {
+        return getRecordRegion(node).getLong(getRecordPosition(node) + 24);
+    }
+
+    @Override
+    public long getCreationTime(int node) {
+        return getRecordRegion(node).getLong(getRecordPosition(node) + 32);
+    }
+
+    @Override
+    public long getModifiedTime(int node) {
+        return getRecordRegion(node).getLong(getRecordPosition(node) + 40);
+    }
+
+    @Override
+    public long getInode(int node) {
+        return getRecordRegion(node).getLong(getRecordPosition(node) + 48);
+    }
+
+    @Override
+    public FileHash getHash(int node) {
+        MappedByteBuffer record = getRecordRegion(node);
+        int position = getRecordPosition(node) + RECORD_SIZE;
+        byte[] bytes = new byte[hashLength];
+        boolean zero = true;
+        for (int i = 0; i < hashLength; i++) {
+            bytes[i] = record.get(position + i);
+            zero &= bytes[i] == 0;
+        }
+        return zero ? FileHash.ZERO : new FileHash(bytes);
+    }
+}
@@ -0,0 +1,203 @@
+package de.silef.service.file.tree;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/**
+ * Path with its file attributes. The attributes are read once by a single stat call and are
+ * passed through the visitor chain, so visitors do not need to query the file system again.
+ *
+ * On Unix systems the attributes are read from the unix attribute view. Symbolic links are
+ * followed like {@link Files#readAttributes(Path, Class, LinkOption...)} does by default.
+ */
+public class PathInfo {
+
+    private static final boolean UNIX_VIEW = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    private static final String UNIX_ATTRIBUTES = "unix:mode,ino,dev,nlink,size,lastModifiedTime,creationTime";
+
+    private static final int TYPE_MASK = 0170000;
+    private static final int TYPE_FILE = 0100000;
+    private static final int TYPE_LINK = 0120000;
+    private static final int TYPE_DIRECTORY = 0040000;
+    private static final int READ_ALL = 0444;
+
+    private Path path;
+
+    private boolean symbolicLink;
+
+    private boolean resolved = true;
+
+    private boolean permissionKnown;
+
+    private int mode;
+
+    private long size;
+
+    private long creationTime;
+    private long modifiedTime;
+
+    private long inode;
+    private long device;
+
+    private int linkCount;
+
+    private PathInfo(Path path) {
+        this.path = path;
+    }
+
+    public static PathInfo read(Path path) throws IOException {
+        PathInfo info = new PathInfo(path);
+        if (UNIX_VIEW) {
+            info.readUnixAttributes(Files.readAttributes(path, UNIX_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS));
+            if (info.getFileType() == TYPE_LINK) {
+                info.symbolicLink = true;
+                try {
+                    info.readUnixAttributes(Files.readAttributes(path, UNIX_ATTRIBUTES));
+                } catch (NoSuchFileException e) {
+                    info.resolved = false;
+                }
+            }
+        } else {
+            info.symbolicLink = Files.isSymbolicLink(path);
+            try {
+                info.readBasicAttributes(Files.readAttributes(path, BasicFileAttributes.class));
+            } catch (NoSuchFileException e) {
+                if (!info.symbolicLink) {
+                    throw e;
+                }
+                info.resolved = false;
+            }
+        }
+        return info;
+    }
+
+    private void readUnixAttributes(Map<String, Object> attributes) {
+        permissionKnown = true;
+        mode = (Integer) attributes.get("mode");
+        inode = (Long) attributes.get("ino");
+        device = (Long) attributes.get("dev");
+        linkCount = (Integer) attributes.get("nlink");
+        size = (Long) attributes.get("size");
+        creationTime = ((FileTime) attributes.get("creationTime")).toMillis();
+        modifiedTime = ((FileTime) attributes.get("lastModifiedTime")).toMillis();
+    }
+
+    private void readBasicAttributes(BasicFileAttributes attributes) {
+        if (attributes.isRegularFile()) {
+            mode = TYPE_FILE;
+        } else if (attributes.isDirectory()) {
+            mode = TYPE_DIRECTORY;
+        } else if (attributes.isSymbolicLink()) {
+            mode = TYPE_LINK;
+        }
+        size = attributes.size();
+        creationTime = attributes.creationTime().toMillis();
+        modifiedTime = attributes.lastModifiedTime().toMillis();
+        inode = readInode(attributes.fileKey());
+    }
+
+    private static long readInode(Object key) {
+        if (key != null) {
+            String value = key.toString();
+            int start = value.indexOf("ino=");
+            if (start >= 0) {
+                start += 4;
+                int end = start;
+                while (end < value.length()) {
+                    char c = value.charAt(end);
+                    if (c < '0' || c > '9') {
+                        break;
+                    }
+                    end++;
+                }
+                if (start < end) {
+                    return Long.parseLong(value.substring(start, end));
+                }
+            }
+        }
+        return 0;
+    }
+
+    private int getFileType() {
+        return mode & TYPE_MASK;
+    }
+
+    /**
+     * Checks read access. Files which are readable by everyone do not require an access call
+     *
+     * @return true if the path can be read
+     */
+    public boolean isReadable() {
+        if (!resolved) {
+            return false;
+        }
+        if (permissionKnown && (mode & READ_ALL) == READ_ALL) {
+            return true;
+        }
+        return Files.isReadable(path);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public boolean isSymbolicLink() {
+        return symbolicLink;
+    }
+
+    public boolean isDirectory() {
+        return resolved && getFileType() == TYPE_DIRECTORY;
+    }
+
+    public boolean isRegularFile() {
+        return resolved && getFileType() == TYPE_FILE;
+    }
+
+    /**
+     * @return File type bits of the mode. See man 2 stat
+     */
+    public int getTypeMode() {
+        return getFileType();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    public long getInode() {
+        return inode;
+    }
+
+    public long getDevice() {
+        return device;
+    }
+
+    /**
+     * @return Count of hard links or 0 if unknown. For directories on most Unix file systems
+     * this is 2 plus the count of subdirectories
+     */
+    public int getLinkCount() {
+        return linkCount;
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
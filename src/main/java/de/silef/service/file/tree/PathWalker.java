@@ -1,15 +1,15 @@
 package de.silef.service.file.tree;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 import static de.silef.service.file.tree.Visitor.VisitorResult.*;
 
@@ -18,32 +18,32 @@ import static de.silef.service.file.tree.Visitor.VisitorResult.*;
  */
 public class PathWalker {
 
-    public static Visitor.VisitorResult walk(Path base, Visitor<? super Path> visitor) throws IOException {
-        if (!Files.isDirectory(base)) {
+    private static final Logger LOG = LoggerFactory.getLogger(PathWalker.class);
+
+    public static Visitor.VisitorResult walk(Path base, Visitor<? super PathInfo> visitor) throws IOException {
+        return walk(PathInfo.read(base), visitor);
+    }
+
+    public static Visitor.VisitorResult walk(PathInfo base, Visitor<? super PathInfo> visitor) throws IOException {
+        if (!base.isDirectory()) {
             return SKIP;
         }
         Visitor.VisitorResult result = visitor.preVisitDirectory(base);
         if (result != CONTINUE) {
             return result;
         }
-        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(base)) {
-            List<Path> paths = StreamSupport.stream(directoryStream.spliterator(), false)
-                    .sorted(sortByModeAndName())
-                    .collect(Collectors.toList());
-
-            for (Path path : paths) {
-                if (!Files.isReadable(path)) {
-                    continue;
-                }
+        for (PathInfo info : list(base.getPath())) {
+            if (!info.isReadable()) {
+                continue;
+            }
 
-                if (Files.isDirectory(path)) {
-                    result = walk(path, visitor);
-                } else {
-                    result = visitor.visitFile(path);
-                }
-                if (result == SKIP_SIBLINGS || result == TERMINATE) {
-                    break;
-                }
+            if (info.isDirectory()) {
+                result = walk(info, visitor);
+            } else {
+                result = visitor.visitFile(info);
+            }
+            if (result == SKIP_SIBLINGS || result == TERMINATE) {
+                break;
             }
         }
         if (result == TERMINATE) {
@@ -52,23 +52,39 @@ public class PathWalker {
         return visitor.postVisitDirectory(base);
     }
 
-    private static Comparator<Path> sortByModeAndName() {
-        Map<Path, Boolean> isDirCache = new HashMap<>();
-        return (a, b) -> {
-            if (!isDirCache.containsKey(a)) {
-                isDirCache.put(a, Files.isDirectory(a));
-            }
-            if (!isDirCache.containsKey(b)) {
-                isDirCache.put(b, Files.isDirectory(b));
+    /**
+     * Lists the directory entries with their attributes, sorted by mode and name. Entries which
+     * attributes could not be read are skipped
+     *
+     * @param dir Directory to list
+     * @return Sorted directory entries
+     * @throws IOException if the directory could not be listed
+     */
+    public static List<PathInfo> list(Path dir) throws IOException {
+        List<PathInfo> infos = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir)) {
+            for (Path path : directoryStream) {
+                try {
+                    infos.add(PathInfo.read(path));
+                } catch (IOException e) {
+                    LOG.debug("Could not read attributes of {}: {}", path, e.getMessage());
+                }
             }
-            boolean isADir = isDirCache.get(a);
-            boolean isBDir = isDirCache.get(b);
+        }
+        infos.sort(sortByModeAndName());
+        return infos;
+    }
+
+    public static Comparator<PathInfo> sortByModeAndName() {
+        return (a, b) -> {
+            boolean isADir = a.isDirectory();
+            boolean isBDir = b.isDirectory();
             if (isADir && !isBDir) {
                 return -1;
             } else if (!isADir && isBDir) {
                 return 1;
             } else {
-                return a.compareTo(b);
+                return a.getPath().compareTo(b.getPath());
             }
         };
     }
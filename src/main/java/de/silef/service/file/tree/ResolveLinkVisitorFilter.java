@@ -4,14 +4,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 
 /**
  * Created by sebastian on 17.09.16.
  */
-public class ResolveLinkVisitorFilter extends Visitor<Path> {
+public class ResolveLinkVisitorFilter extends Visitor<PathInfo> {
 
     private static final Logger LOG = LoggerFactory.getLogger(ResolveLinkVisitorFilter.class);
 
@@ -22,7 +21,7 @@ public class ResolveLinkVisitorFilter extends Visitor<Path> {
     }
 
     @Override
-    public VisitorResult preVisitDirectory(Path dir) throws IOException {
+    public VisitorResult preVisitDirectory(PathInfo dir) throws IOException {
         if (hasSameBasePath(dir)) {
             return super.preVisitDirectory(dir);
         }
@@ -30,15 +29,16 @@ public class ResolveLinkVisitorFilter extends Visitor<Path> {
     }
 
     @Override
-    public VisitorResult visitFile(Path file) throws IOException {
+    public VisitorResult visitFile(PathInfo file) throws IOException {
         if (hasSameBasePath(file)) {
             return super.visitFile(file);
         }
         return VisitorResult.SKIP;
     }
 
-    private boolean hasSameBasePath(Path path) throws IOException {
-        if (Files.isSymbolicLink(path)) {
+    private boolean hasSameBasePath(PathInfo info) throws IOException {
+        if (info.isSymbolicLink()) {
+            Path path = info.getPath();
             try {
                 Path realPath = path.toRealPath();
                 return realPath.startsWith(base);
@@ -1,9 +1,24 @@
 package de.silef.service.file.util;
 
+import de.silef.service.file.hash.DigestState;
+import de.silef.service.file.hash.FileChunk;
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.ResumableDigest;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Created by sebastian on 17.09.16.
@@ -12,33 +27,381 @@ public class HashUtil {
 
     private static final int BUFFER_SIZE = 1 << 14;
 
+    private static final int CHANNEL_BUFFER_SIZE = 1 << 18;
+
+    /**
+     * Files of this size and above are read through memory mapped regions
+     */
+    private static final long MAP_THRESHOLD = 1L << 26;
+
+    private static final long MAP_REGION_SIZE = 1L << 26;
+
+    private static final int FINGERPRINT_SAMPLE_SIZE = 1 << 16;
+
+    /**
+     * Count of fingerprint samples including the head and the tail sample
+     */
+    private static final int FINGERPRINT_SAMPLE_COUNT = 16;
+
+    private static final ThreadLocal<MessageDigest[]> DIGESTS = ThreadLocal.withInitial(() -> new MessageDigest[HashAlgorithm.values().length]);
+
+    /**
+     * Size and count of the samples of the hashed prefix including its head and its tail which
+     * must match to resume hashing
+     */
+    private static final int RESUME_CHECK_SIZE = 1 << 12;
+    private static final int RESUME_CHECK_COUNT = 16;
+
+    private static final int CHUNK_MIN_SIZE = 1 << 18;
+
+    private static final int CHUNK_MAX_SIZE = 1 << 22;
+
+    /**
+     * Normalized chunking of FastCDC: Chunks below the average size of 1 MB require 22 zero
+     * bits of the gear hash and chunks above require 18 zero bits
+     */
+    private static final int CHUNK_AVG_SIZE = 1 << 20;
+    private static final long CHUNK_MASK_SMALL = -1L << (64 - 22);
+    private static final long CHUNK_MASK_LARGE = -1L << (64 - 18);
+
+    private static final long[] GEAR = createGearTable();
+
+    private static final long TREE_BLOCK_SIZE = 1L << 22;
+
+    private static final byte TREE_LEAF = 0;
+    private static final byte TREE_NODE = 1;
+
+    private static final ThreadLocal<ResumableDigest[]> RESUMABLE_DIGESTS = ThreadLocal.withInitial(() -> new ResumableDigest[HashAlgorithm.values().length]);
+
+    private static final ThreadLocal<ByteBuffer> CHANNEL_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE));
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private static final ThreadLocal<ByteBuffer> CHUNK_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(CHANNEL_BUFFER_SIZE));
+
     public static byte[] getHash(Path path) throws IOException {
-        try (InputStream input = new FileInputStream(path.toFile())) {
-            return getHash(input);
+        return getHash(HashAlgorithm.SHA1, path);
+    }
+
+    public static byte[] getHash(HashAlgorithm algorithm, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MessageDigest digest = getDigest(algorithm);
+            if (channel.size() >= MAP_THRESHOLD) {
+                updateMapped(channel, digest);
+            } else {
+                update(channel, digest);
+            }
+            return digest.digest();
         }
     }
 
-    public static byte[] getHash(byte[] bytes) throws IOException {
-        return getHash(bytes, 0, bytes.length);
+    /**
+     * Hash the file size and samples of the content at the head, the tail and evenly spaced
+     * offsets between. Small files are hashed completely after the size
+     *
+     * @param algorithm Hash algorithm
+     * @param path File to fingerprint
+     * @return Hash of the size and the content samples
+     * @throws IOException
+     */
+    public static byte[] getFingerprint(HashAlgorithm algorithm, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MessageDigest digest = getDigest(algorithm);
+            long size = channel.size();
+            ByteBuffer buffer = CHANNEL_BUFFER.get();
+            buffer.clear();
+            buffer.putLong(size);
+            buffer.flip();
+            digest.update(buffer);
+
+            if (size <= (long) FINGERPRINT_SAMPLE_SIZE * FINGERPRINT_SAMPLE_COUNT) {
+                update(channel, digest);
+                return digest.digest();
+            }
+            long step = (size - FINGERPRINT_SAMPLE_SIZE) / (FINGERPRINT_SAMPLE_COUNT - 1);
+            for (int i = 0; i < FINGERPRINT_SAMPLE_COUNT; i++) {
+                long offset = i < FINGERPRINT_SAMPLE_COUNT - 1 ? step * i : size - FINGERPRINT_SAMPLE_SIZE;
+                updateSample(channel, offset, digest);
+            }
+            return digest.digest();
+        }
+    }
+
+    private static void updateSample(FileChannel channel, long offset, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = CHANNEL_BUFFER.get();
+        buffer.clear();
+        buffer.limit(FINGERPRINT_SAMPLE_SIZE);
+        read(channel, buffer, offset);
+        digest.update(buffer);
     }
 
-    public static byte[] getHash(byte[] bytes, int offset, int len) throws IOException {
-        try (InputStream input = new ByteArrayInputStream(bytes, offset, len)) {
-            return getHash(input);
+    /**
+     * Fill the buffer from the given file position until the end of file. The buffer is flipped
+     */
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int read;
+        while (buffer.hasRemaining() && (read = channel.read(buffer, position)) >= 0) {
+            position += read;
         }
+        buffer.flip();
     }
 
-    public static byte[] getHash(InputStream inputStream) throws IOException {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA1");
-            return createHash(inputStream, digest);
-        } catch (NoSuchAlgorithmException e) {
-            throw new IOException("Could not create hash due digest initialization error", e);
+    /**
+     * Hash the file and return the digest state at its end. If the file grew and samples of
+     * the previously hashed prefix are unchanged, only the appended content is read
+     *
+     * @param algorithm Hash algorithm
+     * @param path File to hash
+     * @param previous Previous digest state of the file or null
+     * @return Digest state of the file content. See {@link #getHash(HashAlgorithm, DigestState)}
+     * @throws IOException
+     */
+    public static DigestState getDigestState(HashAlgorithm algorithm, Path path, DigestState previous) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ResumableDigest digest = getResumableDigest(algorithm);
+            boolean resumed = canResume(channel, previous);
+            if (resumed) {
+                digest.setState(previous.getState());
+                channel.position(previous.getLength());
+            }
+            update(channel, digest);
+            long length = channel.position();
+            return new DigestState(length, digest.getState(), getResumeCheck(channel, length), resumed);
+        }
+    }
+
+    public static byte[] getHash(HashAlgorithm algorithm, DigestState state) throws IOException {
+        ResumableDigest digest = getResumableDigest(algorithm);
+        digest.setState(state.getState());
+        return digest.digest();
+    }
+
+    private static boolean canResume(FileChannel channel, DigestState previous) throws IOException {
+        // A file of the same size is rewritten or unchanged but never appended
+        if (previous == null || previous.getLength() >= channel.size()) {
+            return false;
         }
+        return Arrays.equals(previous.getCheck(), getResumeCheck(channel, previous.getLength()));
     }
 
-    private static byte[] createHash(InputStream inputStream, MessageDigest digest) throws IOException {
-        byte[] buf = new byte[BUFFER_SIZE];
+    /**
+     * @return XXH64 of the prefix length and samples at the head, the tail and evenly spaced
+     * offsets of the prefix. Short prefixes are hashed completely
+     */
+    private static byte[] getResumeCheck(FileChannel channel, long length) throws IOException {
+        MessageDigest digest = getDigest(HashAlgorithm.XXH64);
+        ByteBuffer buffer = CHANNEL_BUFFER.get();
+        buffer.clear();
+        buffer.putLong(length);
+        buffer.flip();
+        digest.update(buffer);
+
+        if (length <= (long) RESUME_CHECK_SIZE * RESUME_CHECK_COUNT) {
+            buffer.clear();
+            buffer.limit((int) length);
+            read(channel, buffer, 0);
+            digest.update(buffer);
+            return digest.digest();
+        }
+        long step = (length - RESUME_CHECK_SIZE) / (RESUME_CHECK_COUNT - 1);
+        for (int i = 0; i < RESUME_CHECK_COUNT; i++) {
+            long offset = i < RESUME_CHECK_COUNT - 1 ? step * i : length - RESUME_CHECK_SIZE;
+            buffer.clear();
+            buffer.limit(RESUME_CHECK_SIZE);
+            read(channel, buffer, offset);
+            digest.update(buffer);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Split the file into content defined chunks like FastCDC and hash each chunk. Chunk
+     * boundaries depend on the content only, so an insertion changes only nearby chunks
+     *
+     * @param algorithm Hash algorithm
+     * @param path File to chunk
+     * @return Chunks of the file in order
+     * @throws IOException
+     */
+    public static List<FileChunk> getChunks(HashAlgorithm algorithm, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MessageDigest digest = getDigest(algorithm);
+            List<FileChunk> chunks = new ArrayList<>();
+            ByteBuffer buffer = CHUNK_BUFFER.get();
+            byte[] bytes = buffer.array();
+
+            long offset = 0;
+            int length = 0;
+            long fingerprint = 0;
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                int end = buffer.position();
+                int start = 0;
+                int i = 0;
+                while (i < end) {
+                    if (length < CHUNK_MIN_SIZE) {
+                        int skip = Math.min(CHUNK_MIN_SIZE - length, end - i);
+                        i += skip;
+                        length += skip;
+                        continue;
+                    }
+                    fingerprint = (fingerprint << 1) + GEAR[bytes[i++] & 0xFF];
+                    length++;
+                    long mask = length < CHUNK_AVG_SIZE ? CHUNK_MASK_SMALL : CHUNK_MASK_LARGE;
+                    if ((fingerprint & mask) == 0 || length >= CHUNK_MAX_SIZE) {
+                        digest.update(bytes, start, i - start);
+                        chunks.add(new FileChunk(offset, length, new FileHash(digest.digest())));
+                        start = i;
+                        offset += length;
+                        length = 0;
+                        fingerprint = 0;
+                    }
+                }
+                digest.update(bytes, start, end - start);
+                buffer.clear();
+            }
+            if (length > 0 || chunks.isEmpty()) {
+                chunks.add(new FileChunk(offset, length, new FileHash(digest.digest())));
+            }
+            return chunks;
+        }
+    }
+
+    /**
+     * @param algorithm Hash algorithm
+     * @param chunks File chunks
+     * @return Hash of the concatenated chunk hashes
+     * @throws IOException
+     */
+    public static byte[] getHash(HashAlgorithm algorithm, List<FileChunk> chunks) throws IOException {
+        MessageDigest digest = getDigest(algorithm);
+        for (FileChunk chunk : chunks) {
+            digest.update(chunk.getHash().getBytes());
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Hash the file as Merkle tree of 4 MB blocks. The blocks are read by positional reads and
+     * hashed in parallel by the given fork join pool. A leaf is the hash of 0x00 and the
+     * block content, a node the hash of 0x01 and both child hashes. The left subtree of n
+     * blocks covers the largest power of two below n blocks
+     *
+     * @param algorithm Hash algorithm
+     * @param path File to hash
+     * @param pool Pool to hash the blocks. It might be shared by several files
+     * @return Root hash of the block tree
+     * @throws IOException
+     */
+    public static byte[] getTreeHash(HashAlgorithm algorithm, Path path, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long blockCount = Math.max(1, (size + TREE_BLOCK_SIZE - 1) / TREE_BLOCK_SIZE);
+            try {
+                return pool.invoke(new TreeHashTask(algorithm, channel, size, 0, blockCount));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static class TreeHashTask extends RecursiveTask<byte[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private HashAlgorithm algorithm;
+        private FileChannel channel;
+        private long size;
+        private long fromBlock;
+        private long toBlock;
+
+        TreeHashTask(HashAlgorithm algorithm, FileChannel channel, long size, long fromBlock, long toBlock) {
+            this.algorithm = algorithm;
+            this.channel = channel;
+            this.size = size;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+
+        @Override
+        protected byte[] compute() {
+            try {
+                if (toBlock - fromBlock == 1) {
+                    return hashBlock();
+                }
+                long split = fromBlock + Long.highestOneBit(toBlock - fromBlock - 1);
+                TreeHashTask left = new TreeHashTask(algorithm, channel, size, fromBlock, split);
+                left.fork();
+                byte[] rightHash = new TreeHashTask(algorithm, channel, size, split, toBlock).compute();
+                byte[] leftHash = left.join();
+
+                MessageDigest digest = getDigest(algorithm);
+                digest.update(TREE_NODE);
+                digest.update(leftHash);
+                digest.update(rightHash);
+                return digest.digest();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private byte[] hashBlock() throws IOException {
+            MessageDigest digest = getDigest(algorithm);
+            digest.update(TREE_LEAF);
+            ByteBuffer buffer = CHANNEL_BUFFER.get();
+            long position = fromBlock * TREE_BLOCK_SIZE;
+            long end = Math.min(size, position + TREE_BLOCK_SIZE);
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                read(channel, buffer, position);
+                if (!buffer.hasRemaining()) {
+                    throw new EOFException("File was truncated while hashing");
+                }
+                position += buffer.remaining();
+                digest.update(buffer);
+            }
+            return digest.digest();
+        }
+    }
+
+    /**
+     * Gear table of FastCDC with values of SplitMix64 with seed 0
+     */
+    private static long[] createGearTable() {
+        long[] gear = new long[256];
+        long state = 0;
+        for (int i = 0; i < gear.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            gear[i] = z ^ (z >>> 31);
+        }
+        return gear;
+    }
+
+    public static byte[] getHash(byte[] bytes) throws IOException {
+        return getHash(HashAlgorithm.SHA1, bytes);
+    }
+
+    public static byte[] getHash(HashAlgorithm algorithm, byte[] bytes) throws IOException {
+        return getHash(algorithm, bytes, 0, bytes.length);
+    }
+
+    public static byte[] getHash(HashAlgorithm algorithm, byte[] bytes, int offset, int len) throws IOException {
+        MessageDigest digest = getDigest(algorithm);
+        digest.update(bytes, offset, len);
+        return digest.digest();
+    }
+
+    public static byte[] getHash(InputStream inputStream) throws IOException {
+        return getHash(HashAlgorithm.SHA1, inputStream);
+    }
+
+    public static byte[] getHash(HashAlgorithm algorithm, InputStream inputStream) throws IOException {
+        MessageDigest digest = getDigest(algorithm);
+        byte[] buf = BUFFER.get();
         int read;
         while ((read = inputStream.read(buf)) > 0) {
             digest.update(buf, 0, read);
@@ -46,6 +409,69 @@ public class HashUtil {
         return digest.digest();
     }
 
+    /**
+     * The digest is reused by the current thread. It is reset by the next call, also by other
+     * hash methods of this class
+     *
+     * @return Digest of the current thread
+     * @throws IOException if the digest is not available
+     */
+    public static MessageDigest getDigest(HashAlgorithm algorithm) throws IOException {
+        MessageDigest[] digests = DIGESTS.get();
+        MessageDigest digest = digests[algorithm.ordinal()];
+        if (digest == null) {
+            try {
+                digest = algorithm.createDigest();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("Could not create hash due digest initialization error", e);
+            }
+            digests[algorithm.ordinal()] = digest;
+        }
+        digest.reset();
+        return digest;
+    }
+
+    private static ResumableDigest getResumableDigest(HashAlgorithm algorithm) {
+        ResumableDigest[] digests = RESUMABLE_DIGESTS.get();
+        ResumableDigest digest = digests[algorithm.ordinal()];
+        if (digest == null) {
+            digest = algorithm.createResumableDigest();
+            digests[algorithm.ordinal()] = digest;
+        }
+        digest.reset();
+        return digest;
+    }
+
+    static void update(FileChannel channel, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = CHANNEL_BUFFER.get();
+        buffer.clear();
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Update the digest by mapped regions of the file. Access to a mapped region behind the
+     * end of a file which is truncated meanwhile fails with an InternalError of the JVM, which
+     * is reported as IOException like other read errors
+     */
+    static void updateMapped(FileChannel channel, MessageDigest digest) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            long regionSize = Math.min(MAP_REGION_SIZE, size - position);
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+            try {
+                digest.update(region);
+            } catch (InternalError e) {
+                throw new IOException("File was truncated while it was hashed", e);
+            }
+            position += regionSize;
+        }
+    }
+
     public static String toHex(byte[] hash) {
         StringBuilder sb = new StringBuilder();
         for (byte b : hash) {
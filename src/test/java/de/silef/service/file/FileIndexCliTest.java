@@ -0,0 +1,55 @@
+package de.silef.service.file;
+
+import de.silef.service.file.node.IndexNode;
+import de.silef.service.file.node.IndexNodeReader;
+import de.silef.service.file.test.BasePathTest;
+import org.apache.commons.cli.DefaultParser;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class FileIndexCliTest extends BasePathTest {
+
+    @Test
+    public void runWithNodeTableShouldKeepDigestStatesAndChunksOnCompaction() throws Exception {
+        Path base = tmp.resolve("base");
+        Files.createDirectories(base);
+        byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + i / 7);
+        }
+        Files.write(base.resolve("large.bin"), data);
+        Files.write(base.resolve("small.txt"), "small".getBytes());
+        Files.write(base.resolve("changed.txt"), "changed".getBytes());
+        Path indexFile = tmp.resolve("base.index");
+        assertThat(run(base, indexFile), is(0));
+        assertThat(Files.exists(indexFile.resolveSibling("base.index.nodes")), is(true));
+
+        Files.write(base.resolve("changed.txt"), " and appended".getBytes(), StandardOpenOption.APPEND);
+
+
+        int status = run(base, indexFile, "--journal-size", "0");
+
+
+        assertThat(status, is(1));
+        IndexNode root = new IndexNodeReader().read(base, indexFile);
+        assertThat(root.findChildByName("large.bin").getChunks() != null, is(true));
+        assertThat(root.findChildByName("small.txt").getDigestState() != null, is(true));
+        assertThat(root.findChildByName("changed.txt").getDigestState() != null, is(true));
+        assertThat(Files.exists(indexFile.resolveSibling("base.index.journal")), is(false));
+    }
+
+    private int run(Path base, Path indexFile, String... args) throws Exception {
+        String[] options = {"-q", "-i", indexFile.toString(), "--node-table", "--chunk-min-size", "1024", "--resume-size", "1"};
+        String[] cmdArgs = Arrays.copyOf(options, options.length + args.length + 1);
+        System.arraycopy(args, 0, cmdArgs, options.length, args.length);
+        cmdArgs[cmdArgs.length - 1] = base.toString();
+        return new FileIndexCli(new DefaultParser().parse(FileIndexCli.createOptions(), cmdArgs)).run();
+    }
+}
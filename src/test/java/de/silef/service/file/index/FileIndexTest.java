@@ -1,5 +1,9 @@
 package de.silef.service.file.index;
 
+import de.silef.service.file.hash.HashKind;
+import de.silef.service.file.node.FileMode;
+import de.silef.service.file.node.IndexNode;
+import de.silef.service.file.node.IndexNodeCreator;
 import de.silef.service.file.util.HashUtil;
 import de.silef.service.file.test.BasePathTest;
 import de.silef.service.file.test.PathUtils;
@@ -10,6 +14,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
@@ -43,6 +51,60 @@ public class FileIndexTest extends BasePathTest {
         verifyRootHash(index, "477f1ae1b076ace04a5d398687113a8c539f46a6");
     }
 
+    @Test
+    public void openNodeTable() throws IOException {
+        Path base = PathUtils.getResourcePath("index/foo");
+        FileIndex index = new FileIndex(base);
+        index.initializeTreeHash();
+        Path file = tmp.resolve("nodes");
+
+
+        index.writeNodeTable(file);
+        FileIndex mapped = FileIndex.openNodeTable(base, file, p -> true, n -> true);
+
+
+        verifyRootHash(mapped, "477f1ae1b076ace04a5d398687113a8c539f46a6");
+        List<String> paths = mapped.getRoot().stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList());
+        assertThat(paths, is(index.getRoot().stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList())));
+        assertThat(mapped.getRoot().findByRelativePath(Paths.get("bar/zoo.txt")).getHash(), is(index.getRoot().findByRelativePath(Paths.get("bar/zoo.txt")).getHash()));
+    }
+
+    @Test
+    public void openNodeTableShouldUpdateChanges() throws IOException {
+        Path base = tmp.resolve("base");
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), base);
+        FileIndex index = new FileIndex(base);
+        index.initializeTreeHash();
+        Path file = tmp.resolve("nodes");
+        index.writeNodeTable(file);
+        FileIndex mapped = FileIndex.openNodeTable(base, file, p -> true, n -> true);
+        Files.write(base.resolve("doe.txt"), "modified content".getBytes());
+
+
+        IndexChange changes = mapped.getChanges();
+        mapped.updateChanges(changes, false);
+        mapped.writeNodeTable(file);
+
+
+        assertThat(changes.getModified().size(), is(1));
+        index.update();
+        assertThat(mapped.getRoot().getHash(), is(index.getRoot().getHash()));
+        assertThat(FileIndex.openNodeTable(base, file, p -> true, n -> true).getRoot().getHash(), is(index.getRoot().getHash()));
+    }
+
+    @Test
+    public void updateShouldWorkOnScannedTable() throws IOException {
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+        FileIndex index = new FileIndex(tmp, IndexNodeCreator.createTable(tmp, p -> true), p -> true, n -> true);
+        index.initializeTreeHash();
+
+
+        index.update();
+
+
+        verifyRootHash(index, "477f1ae1b076ace04a5d398687113a8c539f46a6");
+    }
+
     @Test
     public void initializeTreeHashWithSymbolicLink() throws IOException {
         PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
@@ -59,6 +121,102 @@ public class FileIndexTest extends BasePathTest {
         verifyRootHash(index, "7d419281b37ceafbb94a65b664146a03e8c2736e");
     }
 
+    @Test
+    public void initWithParallelScan() throws IOException {
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+        for (int i = 0; i < 8; i++) {
+            Path dir = tmp.resolve("dir" + i).resolve("sub" + i);
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("file" + i + ".txt"), ("content " + i).getBytes());
+        }
+        FileIndex sequential = new FileIndex(tmp, p -> true, n -> true, 1);
+
+
+        FileIndex parallel = new FileIndex(tmp, p -> true, n -> true, 4);
+
+
+        assertThat(parallel.getRoot().getHash(), is(sequential.getRoot().getHash()));
+        assertThat(getPaths(parallel), is(getPaths(sequential)));
+    }
+
+    @Test
+    public void initializeTreeHashWithHashThreads() throws IOException {
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+        for (int i = 0; i < 8; i++) {
+            Path dir = tmp.resolve("dir" + i).resolve("sub" + i);
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("file" + i + ".txt"), ("content " + i).getBytes());
+        }
+        FileIndex sequential = new FileIndex(tmp, p -> true, n -> true, 1);
+        sequential.initializeTreeHash();
+        FileIndex parallel = new FileIndex(tmp, p -> true, n -> true, 4);
+        parallel.setHashThreads(4);
+
+
+        parallel.initializeTreeHash();
+
+
+        assertThat(parallel.getRoot().getHash(), is(sequential.getRoot().getHash()));
+    }
+
+    @Test
+    public void initializeTreeHashWithFingerprint() throws IOException {
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+        FileIndex index = new FileIndex(tmp);
+        index.setFingerprintMinSize(1);
+
+
+        index.initializeTreeHash();
+
+
+        List<HashKind> hashKinds = index.getRoot().stream()
+                .filter(n -> n.getMode() == FileMode.FILE)
+                .map(IndexNode::getHashKind)
+                .distinct()
+                .collect(Collectors.toList());
+        assertThat(hashKinds, is(Collections.singletonList(HashKind.FINGERPRINT)));
+    }
+
+    @Test
+    public void updateShouldMarkResumedHash() throws IOException {
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+        FileIndex index = new FileIndex(tmp);
+        index.setResumableMinSize(1);
+        index.initializeTreeHash();
+        Files.write(tmp.resolve("doe.txt"), "appended".getBytes(), StandardOpenOption.APPEND);
+
+
+        index.update();
+
+
+        IndexNode file = index.getRoot().findChildByName("doe.txt");
+        assertThat(file.getHashKind(), is(HashKind.RESUMED));
+        assertThat(file.getHash().getBytes(), is(HashUtil.getHash(tmp.resolve("doe.txt"))));
+        assertThat(index.getRoot().findByRelativePath(Paths.get("bar/zoo.txt")).getHashKind(), is(HashKind.CONTENT));
+    }
+
+    @Test
+    public void initializeTreeHashWithHardLink() throws IOException {
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+        Files.createLink(tmp.resolve("bar/doe-link.txt"), tmp.resolve("doe.txt"));
+
+        FileIndex index = new FileIndex(tmp);
+        index.setHashThreads(2);
+
+
+        index.initializeTreeHash();
+
+
+        IndexNode file = index.getRoot().findChildByName("doe.txt");
+        IndexNode link = index.getRoot().findByRelativePath(Paths.get("bar/doe-link.txt"));
+        assertThat(link.getHash(), is(file.getHash()));
+        assertThat(file.getHash().getBytes(), is(HashUtil.getHash(tmp.resolve("doe.txt"))));
+    }
+
+    private List<Path> getPaths(FileIndex index) {
+        return index.getRoot().stream().map(IndexNode::getRelativePath).collect(Collectors.toList());
+    }
+
     private void verifyRootHash(FileIndex index, String hash) {
         assertThat(HashUtil.toHex(index.getRoot().getHash().getBytes()), is(hash));
     }
@@ -12,7 +12,10 @@ import org.junit.Test;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -58,6 +61,25 @@ public class IndexUpdaterTest extends BasePathTest {
         assertThat(updatedRootHash, is(existingRootHash));
     }
 
+    @Test
+    public void updateWithHashThreadsShouldNotModifyRootHash() throws IOException {
+        Set<IndexNode> nodes = index.getRoot()
+                .stream()
+                .filter(n -> n.getMode() == FileMode.FILE)
+                .collect(Collectors.toSet());
+
+        String existingRootHash = HashUtil.toHex(index.getRoot().getHash().getBytes());
+        IndexChange change = new IndexChange(tmp, nodes, new HashSet<>(), new HashSet<>());
+        updater.setHashThreads(4);
+
+
+        updater.update(change, createHashConsumer(), true);
+
+
+        String updatedRootHash = HashUtil.toHex(index.getRoot().getHash().getBytes());
+        assertThat(updatedRootHash, is(existingRootHash));
+    }
+
     @Test
     public void updateShouldInsertNewFile() throws IOException {
         givenFile("cats/funny/smile.txt", "content");
@@ -94,6 +116,44 @@ public class IndexUpdaterTest extends BasePathTest {
         assertThat(updatedRootHash, is("fe2268f3a1950493a9d5dc1cb133640fc26696f3"));
     }
 
+    @Test
+    public void updateShouldUpdateRollup() throws IOException {
+        index.getRoot().getTotalFileCount();
+        givenFile("cats/funny/smile.txt", "content");
+        givenFile("foo/doe.txt", "New Content");
+
+
+        updater.update(givenChange(), createHashConsumer(), true);
+
+
+        IndexNode root = index.getRoot();
+        assertThat(root.getTotalFileCount(), is(root.stream().count()));
+        assertThat(root.getTotalFileSize(), is(root.stream().mapToLong(IndexNode::getSize).sum()));
+        assertThat(root.getNewestModifiedTime(), is(root.stream().mapToLong(IndexNode::getModifiedTime).max().getAsLong()));
+        IndexNode foo = root.findChildByName("foo");
+        assertThat(foo.getTotalFileSize(), is(foo.stream().mapToLong(IndexNode::getSize).sum()));
+    }
+
+    @Test
+    public void updateWithInodeOrderShouldHashByInode() throws IOException {
+        Set<IndexNode> nodes = index.getRoot()
+                .stream()
+                .filter(n -> n.getMode() == FileMode.FILE)
+                .collect(Collectors.toSet());
+        IndexChange change = new IndexChange(tmp, nodes, new HashSet<>(), new HashSet<>());
+        List<Long> inodes = new ArrayList<>();
+        updater.setHashOrder(IndexUpdater.HashOrder.INODE);
+
+
+        updater.update(change, createHashConsumer().andThen(n -> inodes.add(n.getInode())), true);
+
+
+        List<Long> sortedInodes = new ArrayList<>(inodes);
+        Collections.sort(sortedInodes);
+        assertThat(inodes, is(sortedInodes));
+        assertThat(inodes.size(), is(nodes.size()));
+    }
+
     private void givenFile(String path, String content) throws IOException {
         Path file = tmp.resolve(path);
         Files.createDirectories(file.getParent());
@@ -0,0 +1,106 @@
+package de.silef.service.file.index;
+
+import de.silef.service.file.test.BasePathTest;
+import de.silef.service.file.test.PathUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class IndexWatcherTest extends BasePathTest {
+
+    private FileIndex index;
+
+    private IndexWatcher watcher;
+
+    private BlockingQueue<IndexChange> changes = new LinkedBlockingQueue<>();
+
+    private Thread watchThread;
+
+    @Before
+    public void setUp() throws IOException {
+        super.setUp();
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+
+        index = new FileIndex(tmp);
+        index.initializeTreeHash();
+
+        watcher = new IndexWatcher(index, 50);
+        watchThread = new Thread(() -> {
+            try {
+                watcher.watch(changes::add);
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        watchThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        watcher.close();
+        try {
+            watchThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void watchShouldInsertFileOfNewDirectory() throws Exception {
+        waitForRegistration();
+
+
+        Files.createDirectories(tmp.resolve("cats/funny"));
+        Files.write(tmp.resolve("cats/funny/smile.txt"), "content".getBytes());
+
+
+        waitForCreated("cats/funny/smile.txt");
+        FileIndex expected = new FileIndex(tmp);
+        expected.initializeTreeHash();
+        assertThat(index.getRoot().getHash(), is(expected.getRoot().getHash()));
+    }
+
+    @Test
+    public void watchShouldRemoveFile() throws Exception {
+        waitForRegistration();
+
+
+        Files.delete(tmp.resolve("bar/zoo.txt"));
+
+
+        IndexChange change = changes.poll(5, TimeUnit.SECONDS);
+        assertThat(change, is(notNullValue()));
+        assertThat(change.getRemoved().size(), is(1));
+        assertThat(index.getRoot().findByRelativePath(Paths.get("bar/zoo.txt")), is(nullValue()));
+    }
+
+    private void waitForRegistration() throws InterruptedException {
+        // Registration of the directories is done by the watch thread
+        Thread.sleep(200);
+    }
+
+    private void waitForCreated(String path) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+            IndexChange change = changes.poll(100, TimeUnit.MILLISECONDS);
+            if (change != null && change.getCreated().stream().anyMatch(n -> n.getRelativePath().equals(Paths.get(path)))) {
+                return;
+            }
+        }
+        throw new AssertionError("Node was not created: " + path);
+    }
+}
@@ -0,0 +1,178 @@
+package de.silef.service.file.node;
+
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.test.PathUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CompactIndexNodeTest {
+
+    @Test
+    public void createShouldKeepTree() throws IOException {
+        IndexNode root = new IndexNodeReader().read(Paths.get("."), PathUtils.getResourcePath("index/fileindex"));
+
+
+        CompactIndexNode compactRoot = CompactIndexNode.createRoot(ArrayIndexNodeTable.create(root));
+
+
+        List<String> paths = compactRoot.stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList());
+        assertThat(paths, is(root.stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList())));
+        assertThat(compactRoot.getHash(), is(root.getHash()));
+
+        CompactIndexNode file = compactRoot.findByRelativePath(Paths.get("bar/zoo.txt"));
+        IndexNode expected = root.findByRelativePath(Paths.get("bar/zoo.txt"));
+        assertThat(file.getName(), is(expected.getName()));
+        assertThat(file.getMode(), is(expected.getMode()));
+        assertThat(file.getSize(), is(expected.getSize()));
+        assertThat(file.getModifiedTime(), is(expected.getModifiedTime()));
+        assertThat(file.getHash(), is(expected.getHash()));
+        assertThat(file.getParent().getName(), is("bar"));
+    }
+
+    @Test
+    public void toIndexNodeShouldKeepHashes() throws IOException {
+        IndexNode root = new IndexNodeReader().read(Paths.get("."), PathUtils.getResourcePath("index/fileindex"));
+        ArrayIndexNodeTable table = ArrayIndexNodeTable.create(root);
+
+
+        IndexNode copy = table.toIndexNode();
+
+
+        List<Path> paths = copy.stream().map(IndexNode::getRelativePath).collect(Collectors.toList());
+        assertThat(paths, is(root.stream().map(IndexNode::getRelativePath).collect(Collectors.toList())));
+        copy.stream()
+                .filter(n -> n.getMode() == FileMode.DIRECTORY)
+                .forEach(IndexNode::resetHashesToRootNode);
+        assertThat(copy.getHash(), is(root.getHash()));
+    }
+
+    @Test
+    public void createShouldShareNames() throws IOException {
+        IndexNode root = IndexNode.createFromIndex(null, FileMode.DIRECTORY, 0, 0, 0, 0, null, "");
+        IndexNode foo = IndexNode.createFromIndex(root, FileMode.DIRECTORY, 0, 0, 0, 1, null, "foo");
+        IndexNode bar = IndexNode.createFromIndex(root, FileMode.DIRECTORY, 0, 0, 0, 2, null, "bar");
+        foo.addChild(IndexNode.createFromIndex(foo, FileMode.FILE, 1, 0, 0, 3, FileHash.ZERO, "readme.txt"));
+        bar.addChild(IndexNode.createFromIndex(bar, FileMode.FILE, 1, 0, 0, 4, FileHash.ZERO, "readme.txt"));
+        root.addChild(foo);
+        root.addChild(bar);
+
+
+        ArrayIndexNodeTable table = ArrayIndexNodeTable.create(root);
+
+
+        assertThat(table.getNodeCount(), is(5));
+        assertThat(table.getNamePoolSize(), is("barreadme.txtfoo".length()));
+        assertThat(CompactIndexNode.createRoot(table).findByRelativePath(Paths.get("foo/readme.txt")).getInode(), is(3L));
+    }
+
+    @Test
+    public void createShouldShareNamesOfManyDirectories() throws IOException {
+        IndexNode root = IndexNode.createFromIndex(null, FileMode.DIRECTORY, 0, 0, 0, 0, null, "");
+        int dirNameLength = 0;
+        for (int i = 0; i < 1000; i++) {
+            IndexNode dir = IndexNode.createFromIndex(root, FileMode.DIRECTORY, 0, 0, 0, i, null, "dir" + i);
+            dir.addChild(IndexNode.createFromIndex(dir, FileMode.FILE, 1, 0, 0, i, FileHash.ZERO, "readme.txt"));
+            root.addChild(dir);
+            dirNameLength += dir.getName().length();
+        }
+
+
+        ArrayIndexNodeTable table = ArrayIndexNodeTable.create(root);
+
+
+        assertThat(table.getNamePoolSize(), is(dirNameLength + "readme.txt".length()));
+        CompactIndexNode file = CompactIndexNode.createRoot(table).findByRelativePath(Paths.get("dir999/readme.txt"));
+        assertThat(file.getName(), is("readme.txt"));
+        assertThat(file.getParent().getName(), is("dir999"));
+    }
+
+    @Test
+    public void findChildByNameShouldSearchSortedChildren() throws IOException {
+        IndexNode root = IndexNode.createFromIndex(null, FileMode.DIRECTORY, 0, 0, 0, 0, null, "");
+        for (String name : Arrays.asList("e", "a", "d", "b", "c")) {
+            root.addChild(IndexNode.createFromIndex(root, FileMode.FILE, 1, 0, 0, name.charAt(0), FileHash.ZERO, name));
+        }
+
+
+        CompactIndexNode compactRoot = CompactIndexNode.createRoot(ArrayIndexNodeTable.create(root));
+
+
+        for (String name : Arrays.asList("a", "b", "c", "d", "e")) {
+            assertThat(compactRoot.findChildByName(name).getInode(), is((long) name.charAt(0)));
+        }
+        assertThat(compactRoot.findChildByName("0"), is((CompactIndexNode) null));
+        assertThat(compactRoot.findChildByName("bb"), is((CompactIndexNode) null));
+        assertThat(compactRoot.findChildByName("f"), is((CompactIndexNode) null));
+    }
+
+    @Test
+    public void readTableShouldKeepIndex() throws IOException {
+        Path fileindex = PathUtils.getResourcePath("index/fileindex");
+        IndexNode root = new IndexNodeReader().read(Paths.get("."), fileindex);
+
+
+        ArrayIndexNodeTable table = new IndexNodeReader().readTable(fileindex);
+
+
+        assertTree(CompactIndexNode.createRoot(table), root);
+    }
+
+    @Test
+    public void createTableShouldKeepScan() throws IOException {
+        Path base = PathUtils.getResourcePath("index/foo");
+        IndexNode root = IndexNodeCreator.create(base, p -> true);
+
+
+        ArrayIndexNodeTable table = IndexNodeCreator.createTable(base, p -> true);
+
+
+        CompactIndexNode compactRoot = CompactIndexNode.createRoot(table);
+        List<String> paths = compactRoot.stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList());
+        assertThat(paths, is(root.stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList())));
+        assertThat(compactRoot.findByRelativePath(Paths.get("bar/zoo.txt")).getInode(), is(root.findByRelativePath(Paths.get("bar/zoo.txt")).getInode()));
+        assertThat(table.toIndexNode().getHash(), is(root.getHash()));
+    }
+
+    @Test
+    public void createRootFromTableShouldLoadChildrenOnAccess() throws IOException {
+        IndexNode root = new IndexNodeReader().read(Paths.get("."), PathUtils.getResourcePath("index/fileindex"));
+        ArrayIndexNodeTable table = ArrayIndexNodeTable.create(root);
+
+
+        IndexNode tableRoot = IndexNode.createRootFromTable(table);
+
+
+        IndexNode bar = tableRoot.findChildByName("bar");
+        assertThat(bar.isChildrenLoaded(), is(false));
+        assertThat(bar.getHash(), is(root.findChildByName("bar").getHash()));
+        bar.removeChildByName("zoo.txt");
+        assertThat(bar.findChildByName("zoo.txt"), is((IndexNode) null));
+        assertThat(CompactIndexNode.createRoot(table).findByRelativePath(Paths.get("bar/zoo.txt")) != null, is(true));
+    }
+
+    private void assertTree(CompactIndexNode compactRoot, IndexNode root) {
+        List<CompactIndexNode> nodes = compactRoot.stream().collect(Collectors.toList());
+        List<IndexNode> expected = root.stream().collect(Collectors.toList());
+        assertThat(nodes.size(), is(expected.size()));
+        for (int i = 0; i < nodes.size(); i++) {
+            CompactIndexNode node = nodes.get(i);
+            IndexNode expectedNode = expected.get(i);
+            assertThat(node.getRelativePath(), is(expectedNode.getRelativePath()));
+            assertThat(node.getMode(), is(expectedNode.getMode()));
+            assertThat(node.getSize(), is(expectedNode.getSize()));
+            assertThat(node.getModifiedTime(), is(expectedNode.getModifiedTime()));
+            assertThat(node.getInode(), is(expectedNode.getInode()));
+            assertThat(node.getHash(), is(expectedNode.getHash()));
+            assertThat(node.getHashKind(), is(expectedNode.getHashKind()));
+        }
+    }
+}
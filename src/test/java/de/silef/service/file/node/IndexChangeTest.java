@@ -10,6 +10,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -80,6 +81,89 @@ public class IndexChangeTest extends BasePathTest {
         assertThat(pathNames, is(Arrays.asList("doe.txt")));
     }
 
+    @Test
+    public void getChangesWithIncrementalScan() throws IOException {
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+        FileIndex index = new FileIndex(tmp);
+        index.setIncrementalScan(true);
+        Files.write(tmp.resolve("doe.txt"), "modified content".getBytes());
+        Files.write(tmp.resolve("bar/new.txt"), "content".getBytes());
+
+
+        IndexChange changes = index.getChanges();
+
+
+        List<String> createdNames = changes.getCreated().stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList());
+        List<String> modifiedNames = changes.getModified().stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList());
+        assertThat(createdNames, is(Arrays.asList("bar/new.txt")));
+        assertThat(modifiedNames, is(Arrays.asList("doe.txt")));
+        assertThat(changes.getRemoved().isEmpty(), is(true));
+    }
+
+    @Test
+    public void getChangesWithIncrementalScanShouldReuseNamesOfUnchangedDirectory() throws IOException {
+        FileTime modifiedTime = FileTime.fromMillis(1000000000000L);
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+        Files.setLastModifiedTime(tmp.resolve("bar"), modifiedTime);
+        FileIndex index = new FileIndex(tmp);
+        index.setIncrementalScan(true);
+        Files.write(tmp.resolve("bar/hidden.txt"), "content".getBytes());
+        Files.setLastModifiedTime(tmp.resolve("bar"), modifiedTime);
+
+
+        IndexChange changes = index.getChanges();
+
+
+        // The directory is not listed, so the entry with restored modification time is not found
+        assertThat(changes.hasChanges(), is(false));
+    }
+
+    @Test
+    public void getChangesWithIncrementalScanShouldListRacyDirectory() throws IOException {
+        FileTime modifiedTime = FileTime.fromMillis(1000000000000L);
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+        Files.setLastModifiedTime(tmp.resolve("bar"), modifiedTime);
+        FileIndex index = new FileIndex(tmp);
+        index.getRoot().setScanTime(modifiedTime.toMillis() + 1000);
+        index.setIncrementalScan(true);
+        Files.write(tmp.resolve("bar/hidden.txt"), "content".getBytes());
+        Files.setLastModifiedTime(tmp.resolve("bar"), modifiedTime);
+
+
+        IndexChange changes = index.getChanges();
+
+
+        List<String> createdNames = changes.getCreated().stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList());
+        assertThat(createdNames, is(Arrays.asList("bar/hidden.txt")));
+    }
+
+    @Test
+    public void getChangesWithIncrementalScanShouldReuseNamesOfUpdatedDirectory() throws IOException {
+        FileTime modifiedTime = FileTime.fromMillis(1000000000000L);
+        FileTime updatedTime = FileTime.fromMillis(1000001000000L);
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
+        Files.setLastModifiedTime(tmp.resolve("bar"), modifiedTime);
+        FileIndex index = new FileIndex(tmp);
+        index.setIncrementalScan(true);
+        Files.write(tmp.resolve("bar/new.txt"), "content".getBytes());
+        Files.setLastModifiedTime(tmp.resolve("bar"), updatedTime);
+        index.update();
+        long secondUpdateTime = System.currentTimeMillis();
+        index.update();
+        Files.write(tmp.resolve("bar/hidden.txt"), "content".getBytes());
+        Files.setLastModifiedTime(tmp.resolve("bar"), updatedTime);
+
+
+        IndexChange changes = index.getChanges();
+
+
+        // The directory took the metadata of the update, so it is not listed again
+        assertThat(changes.hasChanges(), is(false));
+        assertThat(index.getRoot().findChildByName("bar").getModifiedTime(), is(updatedTime.toMillis()));
+        assertThat(index.getRoot().findChildByName("bar").findChildByName("new.txt") != null, is(true));
+        assertThat(index.getRoot().getScanTime() >= secondUpdateTime, is(true));
+    }
+
     @Test
     public void copyKnownHashesFromOldToNewIndex() throws IOException {
         PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp);
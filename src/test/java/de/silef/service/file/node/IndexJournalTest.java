@@ -0,0 +1,117 @@
+package de.silef.service.file.node;
+
+import de.silef.service.file.index.FileIndex;
+import de.silef.service.file.index.IndexChange;
+import de.silef.service.file.test.BasePathTest;
+import de.silef.service.file.test.PathUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Replay of index changes from the journal
+ */
+public class IndexJournalTest extends BasePathTest {
+
+    @Test
+    public void replayShouldRestoreUpdatedTree() throws IOException {
+        FileIndex index = createUpdatedIndex();
+        IndexJournal journal = IndexJournal.forIndex(tmp.resolve("fileindex"));
+        IndexChange changes = index.getChanges();
+        index.updateChanges(changes, false);
+        journal.append(index.getRoot(), toPaths(changes.getCreated()), Collections.emptyList());
+        journal.append(index.getRoot(), toPaths(changes.getModified()), toPaths(changes.getRemoved()));
+
+
+        IndexNode root = new IndexNodeReader().read(tmp.resolve("base"), tmp.resolve("fileindex"));
+        int records = journal.replay(root);
+
+
+        assertThat(records, is(5));
+        assertThat(getPaths(root), is(getPaths(index.getRoot())));
+        assertThat(root.getHash(), is(index.getRoot().getHash()));
+        assertThat(root.getTotalFileCount(), is(index.getRoot().getTotalFileCount()));
+        assertThat(root.findByRelativePath(Paths.get("bar/zoo.txt")), is((IndexNode) null));
+    }
+
+    @Test
+    public void replayShouldDropIncompleteBatch() throws IOException {
+        FileIndex index = createUpdatedIndex();
+        IndexJournal journal = IndexJournal.forIndex(tmp.resolve("fileindex"));
+        IndexChange changes = index.getChanges();
+        index.updateChanges(changes, false);
+        journal.append(index.getRoot(), toPaths(changes.getModified()), toPaths(changes.getRemoved()));
+        long size = journal.size();
+        journal.append(index.getRoot(), toPaths(changes.getCreated()), toPaths(changes.getRemoved()));
+        try (FileChannel channel = FileChannel.open(journal.getFile(), StandardOpenOption.WRITE)) {
+            channel.truncate(journal.size() - 1);
+        }
+
+
+        int records = journal.replay(new IndexNodeReader().read(tmp.resolve("base"), tmp.resolve("fileindex")));
+
+
+        assertThat(records, is(2));
+        assertThat(journal.size(), is(size));
+    }
+
+    @Test
+    public void replayShouldUpdateMetadataOfExistingDirectory() throws IOException {
+        FileIndex index = createUpdatedIndex();
+        IndexJournal journal = IndexJournal.forIndex(tmp.resolve("fileindex"));
+        Path dir = tmp.resolve("base/bar");
+        Files.setLastModifiedTime(dir, FileTime.fromMillis(1000000000000L));
+        IndexNode bar = index.getRoot().findByRelativePath(Paths.get("bar"));
+        bar.copyFrom(IndexNode.createFromPath(bar.getParent(), dir));
+        journal.append(index.getRoot(), Collections.singletonList(Paths.get("bar")), Collections.emptyList());
+
+
+        IndexNode root = new IndexNodeReader().read(tmp.resolve("base"), tmp.resolve("fileindex"));
+        journal.replay(root);
+
+
+        IndexNode replayed = root.findByRelativePath(Paths.get("bar"));
+        assertThat(replayed.getModifiedTime(), is(1000000000000L));
+        assertThat(replayed.findChildByName("zoo.txt") != null, is(true));
+    }
+
+    /**
+     * @return Index of a modified copy of the foo resources. The index file contains the
+     * state before the modification
+     * @throws IOException
+     */
+    private FileIndex createUpdatedIndex() throws IOException {
+        Path base = tmp.resolve("base");
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), base);
+        FileIndex index = new FileIndex(base);
+        index.initializeTreeHash();
+        new IndexNodeWriter().write(index.getRoot(), tmp.resolve("fileindex"));
+
+        Files.createDirectories(base.resolve("new/sub"));
+        Files.write(base.resolve("new/sub/created.txt"), "created".getBytes());
+        Files.write(base.resolve("doe.txt"), "modified content".getBytes());
+        Files.delete(base.resolve("bar/zoo.txt"));
+        return index;
+    }
+
+    private List<Path> getPaths(IndexNode root) {
+        return root.stream().map(IndexNode::getRelativePath).collect(Collectors.toList());
+    }
+
+    private List<Path> toPaths(Collection<IndexNode> nodes) {
+        return nodes.stream().map(IndexNode::getRelativePath).collect(Collectors.toList());
+    }
+}
@@ -1,10 +1,17 @@
 package de.silef.service.file.node;
 
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
 import de.silef.service.file.node.IndexNode;
 import de.silef.service.file.node.IndexNodeReader;
 import de.silef.service.file.test.PathUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -31,5 +38,33 @@ public class IndexNodeReaderTest {
 
         List<String> paths = root.stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList());
         assertThat(paths, is(Arrays.asList("", "bar", "bar/zoo.txt", "doe.txt")));
+        assertThat(root.getHashAlgorithm(), is(HashAlgorithm.SHA1));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void readRecordShouldSkipLongerHashKindExtension() throws IOException {
+        IndexNode node = IndexNode.createFromIndex(null, FileMode.FILE, 4, 1000, 2000, 3, FileHash.ZERO, "doe.txt");
+        node.setHash(new FileHash(new byte[20]), HashKind.FINGERPRINT);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new IndexNodeWriter().writeRecord(node, null, null, new DataOutputStream(bytes), new byte[20]);
+        byte[] record = bytes.toByteArray();
+        // Replace the hash kind extension and its end tag by an extension with a longer payload
+        ByteArrayOutputStream extended = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(extended);
+        output.write(record, 0, record.length - 7);
+        output.writeByte(IndexNode.EXTENSION_HASH_KIND);
+        output.writeInt(3);
+        output.writeByte(HashKind.FINGERPRINT.getId());
+        output.writeShort(0xFFFF);
+        output.writeByte(IndexNode.EXTENSION_END);
+        output.writeInt(42);
+
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(extended.toByteArray()));
+        IndexNode read = new IndexNodeReader().readRecord(null, null, null, input, new IndexNodeReader.IndexHeader(IndexNode.FORMAT_VERSION, HashAlgorithm.SHA1));
+
+
+        assertThat(read.getHashKind(), is(HashKind.FINGERPRINT));
+        assertThat(input.readInt(), is(42));
+    }
+}
@@ -6,6 +6,8 @@ import de.silef.service.file.test.PathUtils;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -162,6 +164,54 @@ public class IndexNodeTest {
         assertThat(HashUtil.toHex(hash.getBytes()), is("7e0953bdd7c8e3fbe607502407b336a696ab11fb"));
     }
 
+    @Test
+    public void getHashShouldEncodeNamesLikeWriteUTF() throws IOException {
+        IndexNode root = IndexNode.createFromIndex(null, FileMode.DIRECTORY, 0, 0, 0, 0, null, "");
+        List<String> names = Arrays.asList("a\u0000b", "caf\u00e9", "snow\u2603", "smile\ud83d\ude00");
+        FileHash childHash = new FileHash("12345678901234567890".getBytes());
+        for (String name : names) {
+            root.addChild(IndexNode.createFromIndex(root, FileMode.FILE, 0, 0, 0, 0, childHash, name));
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(buffer);
+        for (String name : names.stream().sorted().collect(Collectors.toList())) {
+            output.write(childHash.getBytes());
+            output.write(FileMode.FILE.getValue());
+            output.writeUTF(name);
+        }
+
+
+        FileHash hash = root.getHash();
+
+
+        assertThat(hash, is(new FileHash(HashUtil.getHash(buffer.toByteArray()))));
+    }
+
+    @Test
+    public void streamShouldVisitDirectoriesFirst() {
+        IndexNode root = createTree(2, 3);
+
+
+        List<String> paths = root.stream().map(n -> n.getRelativePath().toString()).collect(Collectors.toList());
+
+
+        assertThat(paths.subList(0, 6), is(Arrays.asList("", "dir0", "dir0/dir0", "dir0/dir0/file0", "dir0/dir0/file1", "dir0/dir0/file2")));
+        assertThat(paths.size(), is(1 + 6 + 18 + 27));
+    }
+
+    @Test
+    public void streamShouldKeepOrderInParallel() {
+        IndexNode root = createTree(3, 4);
+        List<IndexNode> expected = root.stream().collect(Collectors.toList());
+
+
+        List<IndexNode> nodes = root.stream().parallel().collect(Collectors.toList());
+
+
+        assertThat(nodes, is(expected));
+    }
+
     @Test
     public void addChildShouldRemoveChildWithSameName() throws IOException {
         Path base = PathUtils.getResourcePath("index");
@@ -181,6 +231,33 @@ public class IndexNodeTest {
         assertThat(names, is(Arrays.asList("buz.txt", "doe.file", "foo.txt", "readme.md")));
     }
 
+    @Test
+    public void getChildrenShouldBeSortedByName() throws IOException {
+        Path base = PathUtils.getResourcePath("index");
+
+        IndexNode root = IndexNode.createRootFromPath(base);
+        givenChildrenNames(root, "foo.txt", "buz.txt", "readme.md", "doe.file", "a.txt");
+
+
+        root.removeChildByName("readme.md");
+
+
+        List<String> names = root.getChildren().stream().map(IndexNode::getName).collect(Collectors.toList());
+        assertThat(names, is(Arrays.asList("a.txt", "buz.txt", "doe.file", "foo.txt")));
+        assertThat(root.findChildByName("readme.md"), is((IndexNode) null));
+        assertThat(root.removeChildByName("readme.md"), is((IndexNode) null));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void getChildrenShouldBeReadOnly() throws IOException {
+        Path base = PathUtils.getResourcePath("index");
+        IndexNode root = IndexNode.createRootFromPath(base);
+        givenChildrenNames(root, "foo.txt");
+
+
+        root.getChildren().clear();
+    }
+
     @Test
     public void findChildByName() throws IOException {
         Path base = PathUtils.getResourcePath("index");
@@ -198,6 +275,23 @@ public class IndexNodeTest {
         assertThat(result, is(childMock));
     }
 
+    private IndexNode createTree(int depth, int width) {
+        IndexNode root = IndexNode.createFromIndex(null, FileMode.DIRECTORY, 0, 0, 0, 0, null, "");
+        addChildren(root, depth, width);
+        return root;
+    }
+
+    private void addChildren(IndexNode dir, int depth, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            dir.addChild(IndexNode.createFromIndex(dir, FileMode.FILE, i, 0, 0, 0, FileHash.ZERO, "file" + i));
+            if (depth > 0) {
+                IndexNode child = IndexNode.createFromIndex(dir, FileMode.DIRECTORY, 0, 0, 0, 0, null, "dir" + i);
+                dir.addChild(child);
+                addChildren(child, depth - 1, width);
+            }
+        }
+    }
+
     private void givenChildrenNames(IndexNode root, String... names) {
         for (String name : names) {
             IndexNode nodeMock = createNodeMock(name);
@@ -1,25 +1,44 @@
 package de.silef.service.file.node;
 
+import de.silef.service.file.hash.DigestState;
+import de.silef.service.file.hash.FileChunk;
+import de.silef.service.file.hash.FileHash;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.hash.HashKind;
 import de.silef.service.file.index.FileIndex;
 import de.silef.service.file.node.IndexNode;
 import de.silef.service.file.node.IndexNodeReader;
 import de.silef.service.file.node.IndexNodeWriter;
 import de.silef.service.file.test.BasePathTest;
 import de.silef.service.file.test.PathUtils;
+import de.silef.service.file.util.HashUtil;
 import org.junit.Test;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * Created by sebastian on 17.09.16.
  */
 public class IndexNodeWriterTest extends BasePathTest {
 
+    private static final int BLOCK_NODE_COUNT = 3;
+
     @Test
     public void write() throws IOException {
         Path base = PathUtils.getResourcePath("index/foo");
@@ -46,5 +65,334 @@ public class IndexNodeWriterTest extends BasePathTest {
 
         FileIndex index = new FileIndex(base, root);
         assertThat(index.getChanges(cache).hasChanges(), is(false));
+        assertThat(root.getScanTime(), is(cache.getRoot().getScanTime()));
+    }
+
+    @Test
+    public void writeShouldKeepHashAlgorithm() throws IOException {
+        Path base = PathUtils.getResourcePath("index/foo");
+        FileIndex cache = new FileIndex(base);
+        cache.setHashAlgorithm(HashAlgorithm.XXH64);
+        cache.initializeTreeHash();
+
+        Path fileindex = tmp.resolve("fileindex");
+        new IndexNodeWriter().write(cache.getRoot(), fileindex);
+
+
+        IndexNode root = new IndexNodeReader().read(base, fileindex);
+
+
+        assertThat(root.getHashAlgorithm(), is(HashAlgorithm.XXH64));
+        assertThat(root.getHash().getLength(), is(8));
+        root.stream().filter(n -> n.getMode() == FileMode.DIRECTORY).forEach(IndexNode::resetHashesToRootNode);
+        assertThat(root.getHash(), is(cache.getRoot().getHash()));
+    }
+
+    @Test
+    public void writeShouldKeepHashKind() throws IOException {
+        Path base = PathUtils.getResourcePath("index/foo");
+        FileIndex cache = new FileIndex(base);
+        cache.setFingerprintMinSize(1);
+        cache.initializeTreeHash();
+
+        Path fileindex = tmp.resolve("fileindex");
+        new IndexNodeWriter().write(cache.getRoot(), fileindex);
+
+
+        IndexNode root = new IndexNodeReader().read(base, fileindex);
+
+
+        IndexNode file = root.findChildByName("doe.txt");
+        assertThat(file.getHashKind(), is(HashKind.FINGERPRINT));
+        assertThat(file.getHash(), is(cache.getRoot().findChildByName("doe.txt").getHash()));
+        assertThat(root.getHashKind(), is(HashKind.CONTENT));
+    }
+
+    @Test
+    public void writeShouldKeepDigestState() throws IOException {
+        Path base = PathUtils.getResourcePath("index/foo");
+        FileIndex cache = new FileIndex(base);
+        cache.setResumableMinSize(1);
+        cache.initializeTreeHash();
+
+        Path fileindex = tmp.resolve("fileindex");
+        new IndexNodeWriter().write(cache.getRoot(), fileindex);
+
+
+        IndexNode root = new IndexNodeReader().read(base, fileindex);
+
+
+        DigestState digestState = root.findChildByName("doe.txt").getDigestState();
+        assertThat(digestState.getLength(), is(Files.size(base.resolve("doe.txt"))));
+        assertThat(new FileHash(HashUtil.getHash(HashAlgorithm.SHA1, digestState)), is(cache.getRoot().findChildByName("doe.txt").getHash()));
+        assertThat(root.getHash(), is(cache.getRoot().getHash()));
+    }
+
+    @Test
+    public void writeShouldKeepChunks() throws IOException {
+        Path base = PathUtils.getResourcePath("index/foo");
+        FileIndex cache = new FileIndex(base);
+        cache.setChunkMinSize(1);
+        cache.initializeTreeHash();
+
+        Path fileindex = tmp.resolve("fileindex");
+        new IndexNodeWriter().write(cache.getRoot(), fileindex);
+
+
+        IndexNode root = new IndexNodeReader().read(base, fileindex);
+
+
+        IndexNode file = root.findChildByName("doe.txt");
+        List<FileChunk> chunks = file.getChunks();
+        assertThat(file.getHashKind(), is(HashKind.CHUNKS));
+        assertThat(chunks, is(cache.getRoot().findChildByName("doe.txt").getChunks()));
+        assertThat(file.getHash().getBytes(), is(HashUtil.getHash(HashAlgorithm.SHA1, chunks)));
+    }
+
+    @Test
+    public void writeShouldKeepRollup() throws IOException {
+        Path base = PathUtils.getResourcePath("index/foo");
+        FileIndex cache = new FileIndex(base);
+        cache.initializeTreeHash();
+
+        Path fileindex = tmp.resolve("fileindex");
+        new IndexNodeWriter().write(cache.getRoot(), fileindex);
+
+
+        IndexNode root = new IndexNodeReader().read(base, fileindex);
+
+
+        assertThat(root.getTotalFileCount(), is(cache.getTotalFileCount()));
+        assertThat(root.getTotalFileSize(), is(cache.getTotalFileSize()));
+        assertThat(root.getNewestModifiedTime(), is(cache.getRoot().getNewestModifiedTime()));
+        assertThat(root.findChildByName("bar").getTotalFileCount(), is(2L));
+    }
+
+    @Test
+    public void readShouldUseStoredRollup() throws IOException {
+        Path base = PathUtils.getResourcePath("index/foo");
+        FileIndex cache = new FileIndex(base);
+        cache.initializeTreeHash();
+        // A stored rollup which differs from the children proves that it is not recalculated
+        cache.getRoot().findChildByName("bar").setRollup(42, 4242, 424242);
+
+        Path fileindex = tmp.resolve("fileindex");
+        new IndexNodeWriter().write(cache.getRoot(), fileindex);
+
+
+        IndexNode root = new IndexNodeReader().read(base, fileindex);
+
+
+        IndexNode bar = root.findChildByName("bar");
+        assertThat(bar.getTotalFileCount(), is(42L));
+        assertThat(bar.getTotalFileSize(), is(4242L));
+        assertThat(bar.getNewestModifiedTime(), is(424242L));
+    }
+
+    @Test
+    public void writeShouldSplitLargeDirectoriesIntoBlocks() throws IOException {
+        Path fileindex = tmp.resolve("fileindex");
+        FileIndex cache = writeBlockIndex(4, fileindex);
+        Path base = cache.getBase();
+
+
+        IndexNode root = new IndexNodeReader().read(base, fileindex);
+
+
+        List<Path> paths = root.stream().map(IndexNode::getRelativePath).collect(Collectors.toList());
+        assertThat(paths, is(cache.getRoot().stream().map(IndexNode::getRelativePath).collect(Collectors.toList())));
+        assertThat(root.getHash(), is(cache.getRoot().getHash()));
+        assertThat(ByteBuffer.wrap(Files.readAllBytes(fileindex)).getInt(), is(IndexNode.MAGIC_HEADER));
+        try (FileChannel channel = FileChannel.open(fileindex)) {
+            IndexBlockTable blocks = IndexBlockTable.read(channel, IndexNode.FORMAT_VERSION);
+            assertThat(blocks.size(), is(5));
+        }
+    }
+
+    @Test
+    public void readShouldReadBlockTableWithPaths() throws IOException {
+        Path fileindex = tmp.resolve("fileindex");
+        FileIndex cache = writeBlockIndex(4, fileindex);
+        rewriteWithBlockPaths(fileindex);
+
+
+        IndexNode root = new IndexNodeReader().read(cache.getBase(), fileindex);
+
+
+        List<Path> paths = root.stream().map(IndexNode::getRelativePath).collect(Collectors.toList());
+        assertThat(paths, is(cache.getRoot().stream().map(IndexNode::getRelativePath).collect(Collectors.toList())));
+        assertThat(root.getHash(), is(cache.getRoot().getHash()));
+    }
+
+    @Test
+    public void readLazyShouldLoadBlocksOnAccess() throws IOException {
+        Path fileindex = tmp.resolve("fileindex");
+        FileIndex cache = writeBlockIndex(4, fileindex);
+        Path base = cache.getBase();
+
+
+        LazyIndex index = new IndexNodeReader().readLazy(base, fileindex);
+
+
+        IndexNode root = index.getRoot();
+        IndexNode dir2 = root.findChildByName("dir2");
+        assertThat(dir2.isChildrenLoaded(), is(false));
+        assertThat(root.getHash(), is(cache.getRoot().getHash()));
+        assertThat(root.getTotalFileCount(), is(cache.getRoot().getTotalFileCount()));
+        assertThat(dir2.isChildrenLoaded(), is(false));
+
+        assertThat(root.findByRelativePath(Paths.get("dir2/sub/file.txt")).getSize(), is(9L));
+        assertThat(dir2.isChildrenLoaded(), is(true));
+        List<Path> paths = root.stream().map(IndexNode::getRelativePath).collect(Collectors.toList());
+        assertThat(paths, is(cache.getRoot().stream().map(IndexNode::getRelativePath).collect(Collectors.toList())));
+        assertThat(index.isOpen(), is(false));
+    }
+
+    @Test
+    public void readLazyShouldReleaseIndexOnClose() throws IOException {
+        Path fileindex = tmp.resolve("fileindex");
+        FileIndex cache = writeBlockIndex(4, fileindex);
+        Path base = cache.getBase();
+
+
+        IndexNode root;
+        try (LazyIndex index = new IndexNodeReader().readLazy(base, fileindex)) {
+            root = index.getRoot();
+            root.findByRelativePath(Paths.get("dir1/sub"));
+        }
+
+
+        assertThat(root.findByRelativePath(Paths.get("dir1/sub/file.txt")).getSize(), is(9L));
+        try {
+            root.findByRelativePath(Paths.get("dir2/sub/file.txt"));
+            fail("Expected closed index");
+        } catch (UncheckedIOException e) {
+            assertThat(root.findChildByName("dir2").isChildrenLoaded(), is(false));
+        }
+    }
+
+    @Test
+    public void readTableShouldReadBlocks() throws IOException {
+        Path fileindex = tmp.resolve("fileindex");
+        FileIndex cache = writeBlockIndex(4, fileindex);
+
+
+        CompactIndexNode root = CompactIndexNode.createRoot(new IndexNodeReader().readTable(fileindex));
+
+
+        List<Path> paths = root.stream().map(CompactIndexNode::getRelativePath).collect(Collectors.toList());
+        assertThat(paths, is(cache.getRoot().stream().map(IndexNode::getRelativePath).collect(Collectors.toList())));
+        assertThat(root.getHash(), is(cache.getRoot().getHash()));
+        assertThat(root.findByRelativePath(Paths.get("dir2/sub/file.txt")).getSize(), is(9L));
+    }
+
+    @Test
+    public void writeWithBlockThreadsShouldKeepContent() throws IOException {
+        FileIndex cache = writeBlockIndex(8, tmp.resolve("fileindex"));
+        Path base = cache.getBase();
+        IndexNodeWriter writer = new IndexNodeWriter();
+        writer.setBlockNodeCount(BLOCK_NODE_COUNT);
+        writer.setBlockThreads(4);
+
+
+        writer.write(cache.getRoot(), tmp.resolve("fileindex-threads"));
+        IndexNodeReader reader = new IndexNodeReader();
+        reader.setBlockThreads(4);
+        IndexNode root = reader.read(base, tmp.resolve("fileindex-threads"));
+
+
+        assertThat(Files.readAllBytes(tmp.resolve("fileindex-threads")), is(Files.readAllBytes(tmp.resolve("fileindex"))));
+        List<Path> paths = root.stream().map(IndexNode::getRelativePath).collect(Collectors.toList());
+        assertThat(paths, is(cache.getRoot().stream().map(IndexNode::getRelativePath).collect(Collectors.toList())));
+        assertThat(root.getHash(), is(cache.getRoot().getHash()));
+    }
+
+    @Test
+    public void writeShouldKeepDeltaEncodedNodes() throws IOException {
+        IndexNode root = IndexNode.createFromIndex(null, FileMode.DIRECTORY, 4096, 1500000000000L, 1500000000000L, 1 << 20, null, "");
+        IndexNode dir = IndexNode.createFromIndex(root, FileMode.DIRECTORY, 4096, 1400000000000L, 1600000000000L, 7, null, "\u65e5\u672c");
+        root.addChild(dir);
+        root.addChild(IndexNode.createFromIndex(root, FileMode.FILE, 1L << 40, 0, -1, Long.MAX_VALUE, FileHash.ZERO, "\u65e5\u672c\u8a9e"));
+        root.addChild(IndexNode.createFromIndex(root, FileMode.LINK, 0, Long.MIN_VALUE, Long.MAX_VALUE, 0, FileHash.ZERO, "\u00e4pfel"));
+        root.addChild(IndexNode.createFromIndex(root, FileMode.OTHER, 3, 1, 2, 3, FileHash.ZERO, "\u00e4pfelbaum"));
+        dir.addChild(IndexNode.createFromIndex(dir, FileMode.FILE, 127, 1600000000001L, 1599999999999L, 6, FileHash.ZERO, "a"));
+        dir.addChild(IndexNode.createFromIndex(dir, FileMode.FILE, 128, 1600000000001L, 1599999999999L, 5, FileHash.ZERO, "ab"));
+
+        Path fileindex = tmp.resolve("fileindex");
+        new IndexNodeWriter().write(root, fileindex);
+
+
+        IndexNode read = new IndexNodeReader().read(tmp, fileindex);
+
+
+        List<IndexNode> expected = root.stream().collect(Collectors.toList());
+        List<IndexNode> nodes = read.stream().collect(Collectors.toList());
+        assertThat(nodes.size(), is(expected.size()));
+        for (int i = 0; i < nodes.size(); i++) {
+            IndexNode node = nodes.get(i);
+            IndexNode expectedNode = expected.get(i);
+            assertThat(node.getName(), is(expectedNode.getName()));
+            assertThat(node.getMode(), is(expectedNode.getMode()));
+            assertThat(node.getSize(), is(expectedNode.getSize()));
+            assertThat(node.getCreationTime(), is(expectedNode.getCreationTime()));
+            assertThat(node.getModifiedTime(), is(expectedNode.getModifiedTime()));
+            assertThat(node.getInode(), is(expectedNode.getInode()));
+        }
+        assertThat(read.getHash(), is(root.getHash()));
+    }
+
+    /**
+     * @param dirCount Count of additional directories with a nested file
+     * @param fileindex Index file to write
+     * @return Index of a copy of the foo resources with additional directories. The index
+     * file is split into blocks of a few nodes
+     * @throws IOException
+     */
+    /**
+     * Rewrite a block index as format version 5 whose block table has a directory path per block
+     */
+    private void rewriteWithBlockPaths(Path fileindex) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(fileindex));
+        bytes.putShort(4, (short) 5);
+        long tableOffset = bytes.getLong(bytes.capacity() - IndexBlockTable.FOOTER_SIZE);
+        int tableLength = bytes.getInt(bytes.capacity() - IndexBlockTable.FOOTER_SIZE + 8);
+
+        byte[] table;
+        try (DataInputStream input = IndexBlockTable.inflate(Arrays.copyOfRange(bytes.array(), (int) tableOffset, (int) tableOffset + tableLength))) {
+            int count = input.readInt();
+            table = IndexBlockTable.compress(output -> {
+                output.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] path = ("path" + i).getBytes(StandardCharsets.UTF_8);
+                    output.writeInt(path.length);
+                    output.write(path);
+                    output.writeLong(input.readLong());
+                    output.writeInt(input.readInt());
+                }
+            });
+        }
+        try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(fileindex))) {
+            output.write(bytes.array(), 0, (int) tableOffset);
+            output.write(table);
+            output.writeLong(tableOffset);
+            output.writeInt(table.length);
+            output.writeInt(IndexNode.MAGIC_HEADER);
+        }
+    }
+
+    private FileIndex writeBlockIndex(int dirCount, Path fileindex) throws IOException {
+        PathUtils.copy(PathUtils.getResourcePath("index/foo"), tmp.resolve("base"));
+        for (int i = 0; i < dirCount; i++) {
+            Path dir = tmp.resolve("base/dir" + i + "/sub");
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("file.txt"), ("content " + i).getBytes());
+        }
+        FileIndex index = new FileIndex(tmp.resolve("base"));
+        index.initializeTreeHash();
+
+        IndexNodeWriter writer = new IndexNodeWriter();
+        writer.setBlockNodeCount(BLOCK_NODE_COUNT);
+        writer.write(index.getRoot(), fileindex);
+        return index;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,251 @@
+package de.silef.service.file.util;
+
+import de.silef.service.file.hash.DigestState;
+import de.silef.service.file.hash.FileChunk;
+import de.silef.service.file.hash.HashAlgorithm;
+import de.silef.service.file.test.BasePathTest;
+import org.junit.Test;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class HashUtilTest extends BasePathTest {
+
+    @Test
+    public void getHashOfPathShouldMatchBytes() throws Exception {
+        byte[] content = createContent(1000003);
+        Path file = tmp.resolve("file.bin");
+        Files.write(file, content);
+
+
+        byte[] hash = HashUtil.getHash(file);
+
+
+        assertThat(hash, is(HashUtil.getHash(content)));
+        assertThat(HashUtil.toHex(HashUtil.getHash(new byte[0])), is("da39a3ee5e6b4b0d3255bfef95601890afd80709"));
+    }
+
+    @Test
+    public void updateMappedShouldMatchBytes() throws Exception {
+        byte[] content = createContent(300007);
+        Path file = tmp.resolve("file.bin");
+        Files.write(file, content);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+
+            HashUtil.updateMapped(channel, digest);
+
+
+        }
+        assertThat(digest.digest(), is(HashUtil.getHash(content)));
+    }
+
+    @Test
+    public void getHashWithXxh64() throws Exception {
+        assertThat(HashUtil.toHex(HashUtil.getHash(HashAlgorithm.XXH64, new byte[0])), is("ef46db3751d8e999"));
+        assertThat(HashUtil.toHex(HashUtil.getHash(HashAlgorithm.XXH64, "abc".getBytes())), is("44bc2cf5ad770999"));
+    }
+
+    @Test
+    public void getHashWithXxh64OfPathShouldMatchBytes() throws Exception {
+        byte[] content = createContent(1000003);
+        Path file = tmp.resolve("file.bin");
+        Files.write(file, content);
+
+
+        byte[] hash = HashUtil.getHash(HashAlgorithm.XXH64, file);
+
+
+        assertThat(hash, is(HashUtil.getHash(HashAlgorithm.XXH64, content)));
+        MessageDigest digest = HashAlgorithm.XXH64.createDigest();
+        for (int offset = 0; offset < content.length; offset += 13) {
+            digest.update(content, offset, Math.min(13, content.length - offset));
+        }
+        assertThat(digest.digest(), is(hash));
+    }
+
+    @Test
+    public void getFingerprintShouldDetectChangedSample() throws Exception {
+        byte[] content = createContent(4000037);
+        Path file = tmp.resolve("file.bin");
+        Files.write(file, content);
+        byte[] fingerprint = HashUtil.getFingerprint(HashAlgorithm.SHA1, file);
+
+        content[content.length - 1]++;
+        Files.write(file, content);
+
+
+        byte[] changed = HashUtil.getFingerprint(HashAlgorithm.SHA1, file);
+
+
+        assertThat(Arrays.equals(changed, fingerprint), is(false));
+        assertThat(Arrays.equals(changed, HashUtil.getHash(content)), is(false));
+    }
+
+    @Test
+    public void getDigestStateShouldResumeAppendedFile() throws Exception {
+        byte[] content = createContent(1000003);
+        Path file = tmp.resolve("file.bin");
+
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            Files.write(file, Arrays.copyOf(content, 700001));
+            DigestState state = HashUtil.getDigestState(algorithm, file, null);
+            Files.write(file, Arrays.copyOfRange(content, 700001, content.length), StandardOpenOption.APPEND);
+
+
+            DigestState resumed = HashUtil.getDigestState(algorithm, file, state);
+
+
+            assertThat(resumed.getLength(), is((long) content.length));
+            assertThat(resumed.isResumed(), is(true));
+            assertThat(HashUtil.getHash(algorithm, resumed), is(HashUtil.getHash(algorithm, content)));
+        }
+    }
+
+    @Test
+    public void getDigestStateShouldRehashRewriteOfSameLength() throws Exception {
+        byte[] content = createContent(700001);
+        Path file = tmp.resolve("file.bin");
+        Files.write(file, content);
+        DigestState state = HashUtil.getDigestState(HashAlgorithm.SHA1, file, null);
+
+        content[350000]++;
+        Files.write(file, content);
+
+
+        DigestState resumed = HashUtil.getDigestState(HashAlgorithm.SHA1, file, state);
+
+
+        assertThat(resumed.isResumed(), is(false));
+        assertThat(HashUtil.getHash(HashAlgorithm.SHA1, resumed), is(HashUtil.getHash(content)));
+    }
+
+    @Test
+    public void getDigestStateShouldRehashEditBeforeTail() throws Exception {
+        byte[] content = createContent(1000003);
+        Path file = tmp.resolve("file.bin");
+        Files.write(file, Arrays.copyOf(content, 700001));
+        DigestState state = HashUtil.getDigestState(HashAlgorithm.SHA1, file, null);
+
+        content[100]++;
+        Files.write(file, content);
+
+
+        DigestState resumed = HashUtil.getDigestState(HashAlgorithm.SHA1, file, state);
+
+
+        assertThat(resumed.isResumed(), is(false));
+        assertThat(HashUtil.getHash(HashAlgorithm.SHA1, resumed), is(HashUtil.getHash(content)));
+    }
+
+    @Test
+    public void getDigestStateShouldRehashModifiedPrefix() throws Exception {
+        byte[] content = createContent(1000003);
+        Path file = tmp.resolve("file.bin");
+        Files.write(file, Arrays.copyOf(content, 700001));
+        DigestState state = HashUtil.getDigestState(HashAlgorithm.SHA1, file, null);
+
+        content[700000]++;
+        Files.write(file, content);
+
+
+        DigestState resumed = HashUtil.getDigestState(HashAlgorithm.SHA1, file, state);
+
+
+        assertThat(HashUtil.getHash(HashAlgorithm.SHA1, resumed), is(HashUtil.getHash(content)));
+    }
+
+    @Test
+    public void getChunksShouldCoverContent() throws Exception {
+        byte[] content = createContent(6000011);
+        Path file = tmp.resolve("file.bin");
+        Files.write(file, content);
+
+
+        List<FileChunk> chunks = HashUtil.getChunks(HashAlgorithm.SHA1, file);
+
+
+        long offset = 0;
+        for (FileChunk chunk : chunks) {
+            assertThat(chunk.getOffset(), is(offset));
+            byte[] hash = HashUtil.getHash(HashAlgorithm.SHA1, content, (int) chunk.getOffset(), chunk.getLength());
+            assertThat(chunk.getHash().getBytes(), is(hash));
+            offset += chunk.getLength();
+        }
+        assertThat(offset, is((long) content.length));
+    }
+
+    @Test
+    public void getChunksShouldKeepChunksAroundInsertion() throws Exception {
+        byte[] content = createContent(6000011);
+        Path file = tmp.resolve("file.bin");
+        Files.write(file, content);
+        List<FileChunk> chunks = HashUtil.getChunks(HashAlgorithm.XXH64, file);
+
+        int insertAt = 3000000;
+        byte[] changed = new byte[content.length + 100];
+        System.arraycopy(content, 0, changed, 0, insertAt);
+        System.arraycopy(content, insertAt, changed, insertAt + 100, content.length - insertAt);
+        Files.write(file, changed);
+
+
+        List<FileChunk> changedChunks = HashUtil.getChunks(HashAlgorithm.XXH64, file);
+
+
+        assertThat(changedChunks.get(0), is(chunks.get(0)));
+        FileChunk last = chunks.get(chunks.size() - 1);
+        FileChunk changedLast = changedChunks.get(changedChunks.size() - 1);
+        assertThat(changedLast.getHash(), is(last.getHash()));
+        assertThat(changedLast.getOffset(), is(last.getOffset() + 100));
+    }
+
+    @Test
+    public void getTreeHashShouldCombineBlocks() throws Exception {
+        int blockSize = 1 << 22;
+        byte[] content = createContent(2 * blockSize + 1000);
+        Path file = tmp.resolve("file.bin");
+        Files.write(file, content);
+        ForkJoinPool pool = new ForkJoinPool(2);
+
+
+        byte[] hash;
+        try {
+            hash = HashUtil.getTreeHash(HashAlgorithm.SHA1, file, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+
+        byte[] leaf0 = hashTree(0, Arrays.copyOfRange(content, 0, blockSize));
+        byte[] leaf1 = hashTree(0, Arrays.copyOfRange(content, blockSize, 2 * blockSize));
+        byte[] leaf2 = hashTree(0, Arrays.copyOfRange(content, 2 * blockSize, content.length));
+        assertThat(hash, is(hashTree(1, hashTree(1, leaf0, leaf1), leaf2)));
+    }
+
+    private byte[] hashTree(int prefix, byte[]... parts) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        digest.update((byte) prefix);
+        for (byte[] part : parts) {
+            digest.update(part);
+        }
+        return digest.digest();
+    }
+
+    private byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+}